@@ -1,5 +1,8 @@
 package Behavioural_Design_Patter.ChainOfResponsibility;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /*
     Assume we are building a customer support system for an e-commerce platform, where users raise tickets that can be of various types, such as general inquiries, refund requests, technical issues, and delivery complaints.
@@ -42,60 +45,802 @@ abstract class SupportHandler{
         this.nextHandler = nextHandler;
     }
 
-    public abstract void handleRequest(String requestType);
-}
+    // Request types this handler takes care of (matched ignoring case)
+    public abstract Set<String> claimedTypes();
 
-class GeneralSupport extends SupportHandler{
-    public void handleRequest(String requestType){
-        if(requestType.equalsIgnoreCase("general")){
-            System.out.println("GeneralSupport: Handling general query");
+    // Does the actual work once this handler has claimed the request
+    protected abstract void process(String requestType);
+
+    // Called on the last handler of the chain when nobody claimed the request
+    protected void unhandled(String requestType){
+    }
+
+    // Receives every ticket of a batch that this handler claimed in one call.
+    // Handlers that can do bulk work (one DB round trip, one API call) override this.
+    protected void processBatch(List<Ticket> tickets){
+        for(Ticket ticket : tickets){
+            process(ticket.requestType());
         }
-        else if(nextHandler != null){
-            nextHandler.handleRequest(requestType);
+    }
+
+    public boolean canHandle(String requestType){
+        for(String type : claimedTypes()){
+            if(type.equalsIgnoreCase(requestType)){
+                return true;
+            }
         }
+        return false;
     }
-}
 
-class BillingSupport extends SupportHandler{
+    // Walks the chain with a loop rather than recursion, so long chains do not grow the stack
     public void handleRequest(String requestType){
-        if(requestType.equalsIgnoreCase("refund")){
-            System.out.println("BillingSupport: Handling refund request");
-        }else if(nextHandler != null){
-            nextHandler.handleRequest(requestType);
+        SupportHandler handler = this;
+        while(!handler.canHandle(requestType)){
+            if(handler.nextHandler == null){
+                handler.unhandled(requestType);
+                return;
+            }
+            handler = handler.nextHandler;
         }
+        handler.process(requestType);
+    }
+}
+
+class GeneralSupport extends SupportHandler{
+    private static final Set<String> TYPES = Set.of("general");
+
+    public Set<String> claimedTypes(){
+        return TYPES;
+    }
+
+    protected void process(String requestType){
+        System.out.println("GeneralSupport: Handling general query");
+    }
+}
+
+class BillingSupport extends SupportHandler{
+    private static final Set<String> TYPES = Set.of("refund");
+
+    public Set<String> claimedTypes(){
+        return TYPES;
+    }
+
+    protected void process(String requestType){
+        System.out.println("BillingSupport: Handling refund request");
     }
 }
 
 
 // Concrete Handler for Technical Support
 class TechnicalSupport extends SupportHandler {
-    public void handleRequest(String requestType) {
-        if (requestType.equalsIgnoreCase("technical")) {
-            System.out.println("TechnicalSupport: Handling technical issue");
-        } else if (nextHandler != null) {
-            nextHandler.handleRequest(requestType);
-        }
+    private static final Set<String> TYPES = Set.of("technical");
+
+    public Set<String> claimedTypes() {
+        return TYPES;
+    }
+
+    protected void process(String requestType) {
+        System.out.println("TechnicalSupport: Handling technical issue");
     }
 }
 
 // Concrete Handler for Delivery Support
 class DeliverySupport extends SupportHandler {
-    public void handleRequest(String requestType) {
-        if (requestType.equalsIgnoreCase("delivery")) {
-            System.out.println("DeliverySupport: Handling delivery issue");
-        } else if (nextHandler != null) {
-            nextHandler.handleRequest(requestType);
-        } else {
-            System.out.println("DeliverySupport: No handler found for request");
+    private static final Set<String> TYPES = Set.of("delivery");
+
+    public Set<String> claimedTypes() {
+        return TYPES;
+    }
+
+    protected void process(String requestType) {
+        System.out.println("DeliverySupport: Handling delivery issue");
+    }
+
+    @Override
+    protected void unhandled(String requestType) {
+        System.out.println("DeliverySupport: No handler found for request");
+    }
+}
+
+// Handler for any team that owns a list of request types, used for large catalogues of ticket types
+class TeamSupport extends SupportHandler {
+    private final String team;
+    private final Set<String> types;
+
+    public TeamSupport(String team, String... types) {
+        this.team = team;
+        this.types = Set.of(types);
+    }
+
+    public Set<String> claimedTypes() {
+        return types;
+    }
+
+    protected void process(String requestType) {
+        System.out.println(team + ": Handling " + requestType);
+    }
+}
+
+
+/*
+    Ticket model
+
+Handlers used to see only the bare request string. A Ticket carries the order id, the request type parsed once
+into a TicketType (the raw string is kept for types outside the enum, such as team catalogues) and a priority.
+*/
+
+enum TicketType {
+    GENERAL("general"), REFUND("refund"), TECHNICAL("technical"), DELIVERY("delivery"), OTHER(null);
+
+    private final String key;
+
+    TicketType(String key) {
+        this.key = key;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public static TicketType parse(String requestType) {
+        for (TicketType type : values()) {
+            if (type.key != null && type.key.equalsIgnoreCase(requestType)) {
+                return type;
+            }
         }
+        return OTHER;
     }
 }
 
+enum TicketPriority {
+    VIP, STANDARD
+}
 
+record Ticket(long orderId, TicketType type, String requestType, TicketPriority priority) {
+    public static Ticket of(long orderId, String requestType, TicketPriority priority) {
+        TicketType type = TicketType.parse(requestType);
+        return new Ticket(orderId, type, type == TicketType.OTHER ? requestType : type.key(), priority);
+    }
+}
 
 
-public class Main {
+/*
+    Compiled chain
+
+Walking the chain costs one equalsIgnoreCase per hop, so late or unknown request types pay for every handler.
+CompiledSupportChain walks the chain once, records for every claimed type the first handler that would have
+taken it, and stores that in an open-addressing table keyed by the interned lower-case type. Lookups hash the
+incoming string case-insensitively in place, so routing is O(1) and allocation-free, while the result is the
+same handler the linear walk would have reached. Types nobody claims still go to the last handler's unhandled().
+*/
+
+class CompiledSupportChain{
+    private final String[] keys;
+    private final int[] positions;        // chain position of the handler claiming keys[slot]
+    private final int mask;
+    private final List<SupportHandler> chain;
+    private final int[] byType = new int[TicketType.values().length];
+
+    private CompiledSupportChain(String[] keys, int[] positions, List<SupportHandler> chain){
+        this.keys = keys;
+        this.positions = positions;
+        this.mask = keys.length - 1;
+        this.chain = chain;
+        for(TicketType type : TicketType.values()){
+            byType[type.ordinal()] = type.key() != null ? position(type.key()) : -1;
+        }
+    }
+
+    public static CompiledSupportChain compile(SupportHandler head){
+        Map<String, Integer> firstClaim = new LinkedHashMap<>();
+        List<SupportHandler> chain = new ArrayList<>();
+        for(SupportHandler h = head; h != null; h = h.nextHandler){
+            for(String type : h.claimedTypes()){
+                firstClaim.putIfAbsent(type.toLowerCase(Locale.ROOT).intern(), chain.size());
+            }
+            chain.add(h);
+        }
+        int size = Integer.highestOneBit(Math.max(2, firstClaim.size() * 2 - 1) << 1);
+        String[] keys = new String[size];
+        int[] positions = new int[size];
+        for(Map.Entry<String, Integer> e : firstClaim.entrySet()){
+            int slot = hash(e.getKey()) & (size - 1);
+            while(keys[slot] != null){
+                slot = (slot + 1) & (size - 1);
+            }
+            keys[slot] = e.getKey();
+            positions[slot] = e.getValue();
+        }
+        return new CompiledSupportChain(keys, positions, Collections.unmodifiableList(chain));
+    }
+
+    // Handlers in chain order
+    public List<SupportHandler> handlers(){
+        return chain;
+    }
+
+    // Last handler of the chain, the one whose unhandled() sees unclaimed requests
+    public SupportHandler tail(){
+        return chain.get(chain.size() - 1);
+    }
+
+    // Handler the linear chain would stop at, or null when no handler claims the type
+    public SupportHandler resolve(String requestType){
+        int position = position(requestType);
+        return position < 0 ? null : chain.get(position);
+    }
+
+    // Chain position of that handler, or -1
+    private int position(String requestType){
+        int slot = hash(requestType) & mask;
+        while(true){
+            String key = keys[slot];
+            if(key == null){
+                return -1;
+            }
+            if(key.length() == requestType.length() && key.regionMatches(true, 0, requestType, 0, key.length())){
+                return positions[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int position(Ticket ticket){
+        return ticket.type() == TicketType.OTHER ? position(ticket.requestType()) : byType[ticket.type().ordinal()];
+    }
+
+    public void handleRequest(String requestType){
+        SupportHandler handler = resolve(requestType);
+        if(handler != null){
+            handler.process(requestType);
+        }else{
+            tail().unhandled(requestType);
+        }
+    }
+
+    // Resolves a parsed ticket: enum-coded types are a plain array load, no string work at all
+    public SupportHandler resolve(Ticket ticket){
+        int position = position(ticket);
+        return position < 0 ? null : chain.get(position);
+    }
+
+    // Groups the batch by the handler that claims each ticket and hands every handler its whole group at
+    // once, handlers in chain order. A counting sort over chain positions: three arrays per batch, no maps.
+    public void handleBatch(List<Ticket> tickets){
+        int n = tickets.size();
+        int unclaimed = chain.size();              // bucket after the last handler
+        int[] bucketOf = new int[n];
+        int[] starts = new int[chain.size() + 2];
+        for(int i = 0; i < n; i++){
+            int position = position(tickets.get(i));
+            bucketOf[i] = position < 0 ? unclaimed : position;
+            starts[bucketOf[i] + 1]++;
+        }
+        for(int b = 1; b < starts.length; b++){
+            starts[b] += starts[b - 1];
+        }
+        Ticket[] sorted = new Ticket[n];
+        int[] fill = Arrays.copyOf(starts, starts.length - 1);
+        for(int i = 0; i < n; i++){
+            sorted[fill[bucketOf[i]]++] = tickets.get(i);
+        }
+        List<Ticket> grouped = Arrays.asList(sorted);
+        for(int b = 0; b < unclaimed; b++){
+            if(starts[b + 1] > starts[b]){
+                chain.get(b).processBatch(grouped.subList(starts[b], starts[b + 1]));
+            }
+        }
+        SupportHandler tail = tail();
+        for(int i = starts[unclaimed]; i < n; i++){
+            tail.unhandled(sorted[i].requestType());
+        }
+    }
+
+    // Case-insensitive hash consistent with String.equalsIgnoreCase
+    private static int hash(String s){
+        int h = 0;
+        for(int i = 0; i < s.length(); i++){
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        return h ^ (h >>> 16);
+    }
+}
+
+/*
+    Asynchronous routing
+
+handleRequest runs on the caller's thread, so a burst of tickets blocks the request threads. TicketRoutingEngine
+puts tickets on a bounded intake queue and returns a CompletableFuture right away. A dispatcher thread routes each
+ticket through the compiled chain to the worker pool of the handler that claims it. Every handler has its own
+pool with a concurrency limit and a bounded number of queued tickets, tracked by a semaphore the dispatcher
+acquires before handing a ticket over: when a handler falls behind, the dispatcher waits for a slot, the intake
+fills, and new submissions fail fast instead of piling up.
+*/
+
+// Bounded two-lane queue: VIP entries are always taken before standard ones
+class TicketIntake<E>{
+    private final ArrayDeque<E> vip = new ArrayDeque<>();
+    private final ArrayDeque<E> standard = new ArrayDeque<>();
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    public TicketIntake(int capacity){
+        this.capacity = capacity;
+    }
+
+    public boolean offer(E entry, TicketPriority priority){
+        lock.lock();
+        try{
+            if(closed || vip.size() + standard.size() >= capacity){
+                return false;
+            }
+            enqueue(entry, priority);
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public void put(E entry, TicketPriority priority) throws InterruptedException{
+        lock.lockInterruptibly();
+        try{
+            while(!closed && vip.size() + standard.size() >= capacity){
+                notFull.await();
+            }
+            if(closed){
+                throw new IllegalStateException("Intake closed");
+            }
+            enqueue(entry, priority);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    // Refuses further entries and queues last behind everything already accepted, in the same critical
+    // section, so no entry can slip in after it
+    public void close(E last){
+        lock.lock();
+        try{
+            closed = true;
+            standard.addLast(last);
+            notEmpty.signal();
+            notFull.signalAll();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed(){
+        lock.lock();
+        try{
+            return closed;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(E entry, TicketPriority priority){
+        (priority == TicketPriority.VIP ? vip : standard).addLast(entry);
+        notEmpty.signal();
+    }
+
+    public E take() throws InterruptedException{
+        lock.lockInterruptibly();
+        try{
+            while(vip.isEmpty() && standard.isEmpty()){
+                notEmpty.await();
+            }
+            E entry = vip.isEmpty() ? standard.pollFirst() : vip.pollFirst();
+            notFull.signal();
+            return entry;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public int size(){
+        lock.lock();
+        try{
+            return vip.size() + standard.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+}
+
+class TicketRoutingEngine implements AutoCloseable{
+    private static final class PendingTicket{
+        final Ticket ticket;
+        final CompletableFuture<SupportHandler> result;
+
+        PendingTicket(Ticket ticket, CompletableFuture<SupportHandler> result){
+            this.ticket = ticket;
+            this.result = result;
+        }
+    }
+
+    // Worker pool of one handler plus the slots (running or queued tickets) the dispatcher may still hand it
+    private static final class Lane{
+        final ThreadPoolExecutor workers;
+        final Semaphore slots;
+
+        Lane(ThreadPoolExecutor workers, int slots){
+            this.workers = workers;
+            this.slots = new Semaphore(slots);
+        }
+    }
+
+    private static final PendingTicket END = new PendingTicket(null, null);
+
+    private final CompiledSupportChain chain;
+    private final TicketIntake<PendingTicket> intake;
+    private final Map<SupportHandler, Lane> lanes = new IdentityHashMap<>();
+    private final Thread dispatcher;
+    private final LongAdder rejected = new LongAdder();
+
+    // Each handler gets up to maxConcurrency workers and laneCapacity queued tickets. Pass a virtual
+    // thread factory (Thread.ofVirtual().factory() on Java 21+) to run handlers on virtual threads.
+    public TicketRoutingEngine(CompiledSupportChain chain, int intakeCapacity, int maxConcurrency, int laneCapacity, ThreadFactory threadFactory){
+        this.chain = chain;
+        this.intake = new TicketIntake<>(intakeCapacity);
+        for(SupportHandler handler : chain.handlers()){
+            // The semaphore is the real bound; the queue is sized so it can never reject a permitted ticket
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxConcurrency + laneCapacity), threadFactory);
+            workers.allowCoreThreadTimeOut(true);
+            lanes.put(handler, new Lane(workers, maxConcurrency + laneCapacity));
+        }
+        this.dispatcher = new Thread(this::dispatchLoop, "ticket-dispatcher");
+        this.dispatcher.start();
+    }
+
+    public TicketRoutingEngine(CompiledSupportChain chain, int intakeCapacity, int maxConcurrency, int laneCapacity){
+        this(chain, intakeCapacity, maxConcurrency, laneCapacity, Executors.defaultThreadFactory());
+    }
+
+    // Completes with the handler that processed the ticket, or null when no handler claimed it.
+    // Completes exceptionally with RejectedExecutionException when the intake is full.
+    public CompletableFuture<SupportHandler> submit(String requestType){
+        return submit(Ticket.of(0, requestType, TicketPriority.STANDARD));
+    }
+
+    // VIP tickets are dispatched ahead of every standard ticket waiting in the intake
+    public CompletableFuture<SupportHandler> submit(Ticket ticket){
+        CompletableFuture<SupportHandler> result = new CompletableFuture<>();
+        if(!intake.offer(new PendingTicket(ticket, result), ticket.priority())){
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException(intake.isClosed() ? "Engine closed" : "Intake queue full"));
+        }
+        return result;
+    }
+
+    private void dispatchLoop(){
+        try{
+            while(true){
+                PendingTicket pending = intake.take();
+                if(pending == END){
+                    return;
+                }
+                String requestType = pending.ticket.requestType();
+                SupportHandler handler = chain.resolve(pending.ticket);
+                SupportHandler target = handler != null ? handler : chain.tail();
+                Lane lane = lanes.get(target);
+                try{
+                    lane.slots.acquire(); // lane is full: the dispatcher waits here until a ticket finishes
+                }catch(InterruptedException e){
+                    pending.result.completeExceptionally(e);
+                    throw e;
+                }
+                try{
+                    lane.workers.execute(() -> {
+                        try{
+                            if(handler != null){
+                                handler.process(requestType);
+                            }else{
+                                target.unhandled(requestType);
+                            }
+                            pending.result.complete(handler);
+                        }catch(Throwable t){
+                            pending.result.completeExceptionally(t);
+                        }finally{
+                            lane.slots.release();
+                        }
+                    });
+                }catch(RejectedExecutionException e){
+                    lane.slots.release();
+                    pending.result.completeExceptionally(e);
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int intakeDepth(){
+        return intake.size();
+    }
+
+    public int queueDepth(SupportHandler handler){
+        return lanes.get(handler).workers.getQueue().size();
+    }
+
+    public int activeWorkers(SupportHandler handler){
+        return lanes.get(handler).workers.getActiveCount();
+    }
+
+    public long rejectedCount(){
+        return rejected.sum();
+    }
+
+    // Stops accepting tickets, finishes everything already accepted and stops the workers
+    @Override
+    public void close() throws InterruptedException{
+        intake.close(END);
+        dispatcher.join();
+        for(Lane lane : lanes.values()){
+            lane.workers.shutdown();
+        }
+        for(Lane lane : lanes.values()){
+            lane.workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
+
+/*
+    Chain metrics
+
+ChainExecutor runs the chain iteratively and records, for every handler, how many requests it handled, how many
+it passed on, and a latency histogram of process(). LatencyHistogram uses HdrHistogram-style log-linear buckets
+(16 sub-buckets per power of two, about 6% precision) in an AtomicLongArray, so recording is lock-free.
+In self-optimizing mode the executor periodically moves hot handlers towards the front. Two neighbours are only
+swapped when they claim no request type in common, so every request still reaches the handler it reached before.
+*/
+
+class LatencyHistogram{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    public void record(long nanos){
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    private static int index(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Upper bound of the values counted in a bucket
+    private static long highestValue(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (magnitude - SUB_BITS)) - 1;
+    }
+
+    // Point-in-time copy: {count, p50, p99, max} in nanoseconds
+    public long[] snapshot(){
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for(int i = 0; i < copy.length; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new long[]{total, percentile(copy, total, 0.50), percentile(copy, total, 0.99), percentile(copy, total, 1.0)};
+    }
+
+    private static long percentile(long[] copy, long total, double q){
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * q));
+        long seen = 0;
+        for(int i = 0; i < copy.length; i++){
+            seen += copy[i];
+            if(seen >= rank){
+                return highestValue(i);
+            }
+        }
+        return highestValue(copy.length - 1);
+    }
+}
+
+final class HandlerStats{
+    final String handler;
+    final long hits;
+    final long passThroughs;
+    final long p50Nanos;
+    final long p99Nanos;
+    final long maxNanos;
+
+    HandlerStats(String handler, long hits, long passThroughs, long p50Nanos, long p99Nanos, long maxNanos){
+        this.handler = handler;
+        this.hits = hits;
+        this.passThroughs = passThroughs;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    @Override
+    public String toString(){
+        return handler + " hits=" + hits + " passed=" + passThroughs + " p50=" + p50Nanos + "ns p99=" + p99Nanos + "ns max=" + maxNanos + "ns";
+    }
+}
+
+class ChainExecutor{
+    private static final class Node{
+        final SupportHandler handler;
+        final Set<String> claims = new HashSet<>();
+        final LongAdder hits = new LongAdder();
+        final LongAdder passThroughs = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Node(SupportHandler handler){
+            this.handler = handler;
+            for(String type : handler.claimedTypes()){
+                claims.add(type.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final SupportHandler tail;
+    private final long reorderEvery;
+    private final AtomicLong executed = new AtomicLong();
+    private volatile Node[] order;
+
+    // reorderEvery > 0 turns on self-optimizing mode: reorder() runs after that many requests
+    public ChainExecutor(SupportHandler head, long reorderEvery){
+        SupportHandler last = head;
+        for(SupportHandler h = head; h != null; h = h.nextHandler){
+            nodes.add(new Node(h));
+            last = h;
+        }
+        this.tail = last;
+        this.reorderEvery = reorderEvery;
+        this.order = nodes.toArray(new Node[0]);
+    }
+
+    public void handleRequest(String requestType){
+        Node[] current = order;
+        boolean handled = false;
+        for(Node node : current){
+            if(node.handler.canHandle(requestType)){
+                long start = System.nanoTime();
+                node.handler.process(requestType);
+                node.latency.record(System.nanoTime() - start);
+                node.hits.increment();
+                handled = true;
+                break;
+            }
+            node.passThroughs.increment();
+        }
+        if(!handled){
+            tail.unhandled(requestType);
+        }
+        if(reorderEvery > 0 && executed.incrementAndGet() % reorderEvery == 0){
+            reorder();
+        }
+    }
+
+    // Bubbles hotter handlers forward, never swapping two handlers that claim a common type. The counts are read
+    // once up front: live counters keep moving under traffic and the sort could disagree with itself.
+    public synchronized void reorder(){
+        Node[] next = order.clone();
+        long[] hits = new long[next.length];
+        for(int i = 0; i < next.length; i++){
+            hits[i] = next[i].hits.sum();
+        }
+        boolean swapped = true;
+        while(swapped){
+            swapped = false;
+            for(int i = 0; i + 1 < next.length; i++){
+                Node a = next[i];
+                Node b = next[i + 1];
+                if(hits[i + 1] > hits[i] && Collections.disjoint(a.claims, b.claims)){
+                    next[i] = b;
+                    next[i + 1] = a;
+                    long h = hits[i];
+                    hits[i] = hits[i + 1];
+                    hits[i + 1] = h;
+                    swapped = true;
+                }
+            }
+        }
+        order = next;
+    }
+
+    // Stats per handler in the current check order
+    public List<HandlerStats> snapshot(){
+        List<HandlerStats> stats = new ArrayList<>();
+        for(Node node : order){
+            long[] latency = node.latency.snapshot();
+            stats.add(new HandlerStats(node.handler.getClass().getSimpleName(), node.hits.sum(), node.passThroughs.sum(),
+                    latency[1], latency[2], latency[3]));
+        }
+        return stats;
+    }
+}
+
+// Quiet handler for the benchmark: counts instead of printing
+class CountingSupport extends SupportHandler {
+    private final Set<String> types;
+    long handled;
+
+    public CountingSupport(String... types) {
+        this.types = Set.of(types);
+    }
+
+    public Set<String> claimedTypes() {
+        return types;
+    }
+
+    protected void process(String requestType) {
+        handled++;
+    }
+
+    @Override
+    protected void processBatch(List<Ticket> tickets) {
+        handled += tickets.size();
+    }
+}
+
+// Compares per-ticket handleRequest with handleBatch, both on the compiled chain, so the difference is
+// batching alone and not the index lookup.
+// JMH is not part of this source tree, so this is a plain warm-up + measure harness:
+// java Behavioural_Design_Patter.ChainOfResponsibility.BatchRoutingBenchmark
+class BatchRoutingBenchmark {
     public static void main(String[] args) {
+        SupportHandler head = new CountingSupport("general");
+        SupportHandler last = head;
+        for (int i = 0; i < 200; i++) {
+            SupportHandler team = new CountingSupport("type-" + i);
+            last.setNextHandler(team);
+            last = team;
+        }
+        for (String type : new String[]{"refund", "technical", "delivery"}) {
+            SupportHandler handler = new CountingSupport(type);
+            last.setNextHandler(handler);
+            last = handler;
+        }
+        CompiledSupportChain compiled = CompiledSupportChain.compile(head);
+
+        String[] types = {"general", "refund", "technical", "delivery", "type-42", "type-180"};
+        List<Ticket> batch = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            batch.add(Ticket.of(i, types[i % types.length], i % 10 == 0 ? TicketPriority.VIP : TicketPriority.STANDARD));
+        }
+        for (int round = 0; round < 20; round++) {
+            long t0 = System.nanoTime();
+            for (Ticket ticket : batch) {
+                compiled.handleRequest(ticket.requestType());
+            }
+            long t1 = System.nanoTime();
+            compiled.handleBatch(batch);
+            long t2 = System.nanoTime();
+            if (round == 19) {
+                System.out.printf("handleRequest %.1f ns/ticket, handleBatch %.1f ns/ticket%n",
+                        (t1 - t0) / (double) batch.size(), (t2 - t1) / (double) batch.size());
+            }
+        }
+    }
+}
+
+
+
+
+public class Main {
+    public static void main(String[] args) throws Exception {
         // SupportService supportService = new SupportService();
     
         // supportService.handleRequest("general");
@@ -116,6 +861,61 @@ public class Main {
         general.handleRequest("refund");
         general.handleRequest("delivery");
         general.handleRequest("unknown");
+
+        System.out.println();
+
+        // Same chain with 200 more team handlers, routed through the compiled index
+        SupportHandler last = technical;
+        for(int i = 0; i < 200; i++){
+            SupportHandler team = new TeamSupport("Team" + i, "type-" + i, "alias-" + i);
+            last.setNextHandler(team);
+            last = team;
+        }
+        last.setNextHandler(delivery);
+
+        CompiledSupportChain compiled = CompiledSupportChain.compile(general);
+        compiled.handleRequest("REFUND");
+        compiled.handleRequest("Type-150");
+        compiled.handleRequest("delivery");
+        compiled.handleRequest("unknown");
+
+        System.out.println();
+
+        // Asynchronous routing: callers get a future instead of waiting for the handler
+        try(TicketRoutingEngine engine = new TicketRoutingEngine(compiled, 1_000, 4, 100)){
+            List<CompletableFuture<SupportHandler>> results = new ArrayList<>();
+            for(String type : new String[]{"general", "technical", "type-7", "unknown"}){
+                results.add(engine.submit(type));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+            System.out.println("Routed " + results.size() + " tickets, rejected " + engine.rejectedCount());
+            engine.submit(Ticket.of(42, "refund", TicketPriority.VIP)).join();
+        }
+
+        System.out.println();
+
+        // Batch routing: every handler receives all of its tickets in one call
+        compiled.handleBatch(Arrays.asList(
+                Ticket.of(1, "refund", TicketPriority.STANDARD),
+                Ticket.of(2, "type-3", TicketPriority.VIP),
+                Ticket.of(3, "Refund", TicketPriority.STANDARD),
+                Ticket.of(4, "unknown", TicketPriority.STANDARD)));
+
+        System.out.println();
+
+        // Metrics and self-optimizing order on a fresh chain of quiet handlers
+        SupportHandler first = new CountingSupport("general");
+        SupportHandler second = new CountingSupport("refund");
+        SupportHandler third = new CountingSupport("delivery");
+        first.setNextHandler(second);
+        second.setNextHandler(third);
+        ChainExecutor executor = new ChainExecutor(first, 1_000);
+        for(int i = 0; i < 10_000; i++){
+            executor.handleRequest(i % 10 == 0 ? "refund" : "delivery");
+        }
+        for(HandlerStats stats : executor.snapshot()){
+            System.out.println(stats);
+        }
     }
     
 }
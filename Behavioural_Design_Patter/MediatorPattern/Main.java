@@ -1,5 +1,16 @@
 package Behavioural_Design_Patter.MediatorPattern;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BinaryOperator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 
 /*
@@ -75,11 +86,1543 @@ class User{
     public void receiveChange(String change, User sender){
         System.out.println(name + " saw change from " + sender.name + ": \"" + change + "\"");
     }
+
+    // Document-backed mediators send the current text when a user joins
+    public void receiveSnapshot(String text, long revision){
+        System.out.println(name + " loaded revision " + revision + " (" + text.length() + " chars)");
+    }
+
+    // Structured edit from a document-backed mediator, already transformed to the latest revision.
+    // sender is null when the operation is replayed from the op log, which does not keep authors.
+    public void receiveOperation(TextOperation operation, long revision, User sender){
+        if(sender == null){
+            System.out.println(name + " caught up with revision " + revision + ": " + operation);
+            return;
+        }
+        receiveChange(operation.toString(), sender);
+    }
+
+    // Binary form of an operation as it would arrive over the wire (see OpCodec)
+    public void receiveFrame(byte[] frame, long revision, User sender){
+        receiveOperation(OpCodec.decodeFrame(frame), revision, sender);
+    }
+
+    // Batching mediators deliver several changes at once; by default each one is handled as before
+    public void receiveBatch(List<DocumentChange> changes){
+        for(DocumentChange change : changes){
+            receiveChange(change.text, change.sender);
+        }
+    }
+}
+
+// One change waiting in a batching mediator
+class DocumentChange{
+    final User sender;
+    final String text;
+    final long createdNanos;
+
+    DocumentChange(User sender, String text, long createdNanos){
+        this.sender = sender;
+        this.text = text;
+        this.createdNanos = createdNanos;
+    }
+}
+
+
+/*
+Large sessions
+
+CollaborativeDocument calls every peer from the editor's thread, so one slow receiver stalls everybody and
+join() is not thread-safe. ConcurrentCollaborativeDocument keeps members in a copy-on-write list (joins are rare,
+broadcasts are constant) and gives each member a bounded mailbox. A broadcast only enqueues the change into the
+mailboxes; a mailbox schedules itself on the worker pool when it has work, so each receiver is drained by one
+worker at a time and in order. A receiver whose mailbox is full loses the change (it is lagging), and after too
+many lost changes in a row it is removed from the session instead of holding the editor back.
+*/
+
+class ConcurrentCollaborativeDocument implements DocumentSessionMediator, AutoCloseable{
+    private static final class Change{
+        final String text;
+        final User sender;
+
+        Change(String text, User sender){
+            this.text = text;
+            this.sender = sender;
+        }
+    }
+
+    private final class Mailbox implements Runnable{
+        final User user;
+        final BlockingQueue<Change> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicInteger dropped = new AtomicInteger();
+
+        Mailbox(User user){
+            this.user = user;
+            this.queue = new ArrayBlockingQueue<>(mailboxCapacity);
+        }
+
+        void offer(Change change){
+            if(!queue.offer(change)){
+                droppedChanges.increment();
+                if(dropped.incrementAndGet() >= maxDropsBeforeEviction && members.remove(this)){
+                    evicted.increment();
+                }
+                return;
+            }
+            if(dropped.get() != 0){
+                dropped.set(0); // it caught up, only consecutive drops count towards eviction
+            }
+            schedule();
+        }
+
+        boolean idle(){
+            return queue.isEmpty() && !scheduled.get();
+        }
+
+        void schedule(){
+            if(scheduled.compareAndSet(false, true)){
+                try{
+                    workers.execute(this);
+                }catch(RejectedExecutionException e){
+                    scheduled.set(false); // only an evicted member can still be here after close
+                }
+            }
+        }
+
+        @Override
+        public void run(){
+            Change change;
+            int budget = 64; // let other mailboxes run between bursts
+            while(budget-- > 0 && (change = queue.poll()) != null){
+                try{
+                    user.receiveChange(change.text, change.sender);
+                    delivered.increment();
+                }catch(RuntimeException e){
+                    failedDeliveries.increment();
+                }
+            }
+            scheduled.set(false);
+            if(!queue.isEmpty()){
+                schedule();
+            }else if(closed){
+                signalQuiet();
+            }
+        }
+
+        // One mailbox per user, so joining twice is a no-op
+        @Override
+        public boolean equals(Object other){
+            return other instanceof Mailbox && ((Mailbox) other).user == user;
+        }
+
+        @Override
+        public int hashCode(){
+            return System.identityHashCode(user);
+        }
+    }
+
+    private final CopyOnWriteArrayList<Mailbox> members = new CopyOnWriteArrayList<>();
+    private final ExecutorService workers;
+    private final int mailboxCapacity;
+    private final int maxDropsBeforeEviction;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder droppedChanges = new LongAdder();
+    private final LongAdder failedDeliveries = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final AtomicInteger broadcasting = new AtomicInteger();
+    private final Object quiet = new Object(); // close() waits here until nothing is queued or being broadcast
+    private volatile boolean closed;
+
+    public ConcurrentCollaborativeDocument(int workerThreads, int mailboxCapacity, int maxDropsBeforeEviction){
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.mailboxCapacity = mailboxCapacity;
+        this.maxDropsBeforeEviction = maxDropsBeforeEviction;
+    }
+
+    @Override
+    public void join(User user){
+        members.addIfAbsent(new Mailbox(user));
+    }
+
+    public void leave(User user){
+        members.removeIf(mailbox -> mailbox.user == user);
+    }
+
+    // Only enqueues: the editor never waits for a receiver
+    @Override
+    public void broadcastChange(String change, User sender){
+        broadcasting.incrementAndGet();
+        try{
+            if(closed){
+                throw new IllegalStateException("Document session is closed");
+            }
+            Change shared = new Change(change, sender);
+            for(Mailbox mailbox : members){
+                if(mailbox.user != sender){
+                    mailbox.offer(shared);
+                }
+            }
+        }finally{
+            if(broadcasting.decrementAndGet() == 0 && closed){
+                signalQuiet();
+            }
+        }
+    }
+
+    private void signalQuiet(){
+        synchronized(quiet){
+            quiet.notifyAll();
+        }
+    }
+
+    private boolean isQuiet(){
+        return broadcasting.get() == 0 && members.stream().allMatch(Mailbox::idle);
+    }
+
+    public int memberCount(){
+        return members.size();
+    }
+
+    public long deliveredCount(){
+        return delivered.sum();
+    }
+
+    public long droppedCount(){
+        return droppedChanges.sum();
+    }
+
+    public long evictedCount(){
+        return evicted.sum();
+    }
+
+    // Refuses new changes, delivers what is already queued and stops the workers. The pool is shut down only
+    // once every mailbox is empty, because a mailbox that used up its budget reschedules itself on it. Once
+    // closed is set, the last broadcast to finish and every mailbox that runs dry wake this thread up to check.
+    @Override
+    public void close() throws InterruptedException{
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        synchronized(quiet){
+            while(!isQuiet()){
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remaining <= 0){
+                    break;
+                }
+                quiet.wait(remaining);
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
+
+/*
+Batched delivery
+
+With one broadcast per keystroke, a typing session sends users x keystrokes messages. BatchingCollaborativeDocument
+collects changes for a short window (or until maxBatch changes are waiting) and then gives every user a single
+batch. While collecting, a change identical to the sender's previous pending change is dropped, and an optional
+merge function can fold consecutive changes from the same sender into one (for example appending keystrokes).
+Batch size and delivery latency (time from makeChange to delivery) are recorded as metrics.
+*/
+
+class BatchingCollaborativeDocument implements DocumentSessionMediator, AutoCloseable{
+    private final CopyOnWriteArrayList<User> users = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private final int maxBatch;
+    private final BinaryOperator<String> merge;
+    private List<DocumentChange> pending = new ArrayList<>();
+    private boolean closed; // guarded by this, like pending
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder deliveredChanges = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // merge may be null, in which case only exact repeats are coalesced
+    public BatchingCollaborativeDocument(long windowMillis, int maxBatch, BinaryOperator<String> merge){
+        this.maxBatch = maxBatch;
+        this.merge = merge;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "document-batch-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleAtFixedRate(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void join(User user){
+        users.addIfAbsent(user);
+    }
+
+    @Override
+    public void broadcastChange(String change, User sender){
+        boolean full;
+        synchronized(this){
+            if(closed){
+                throw new IllegalStateException("Document session is closed");
+            }
+            DocumentChange last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+            if(last != null && last.sender == sender && (last.text.equals(change) || merge != null)){
+                if(!last.text.equals(change)){
+                    pending.set(pending.size() - 1, new DocumentChange(sender, merge.apply(last.text, change), last.createdNanos));
+                }
+                coalesced.increment();
+                return;
+            }
+            pending.add(new DocumentChange(sender, change, System.nanoTime()));
+            full = pending.size() >= maxBatch;
+        }
+        if(full){
+            try{
+                flusher.execute(this::flush);
+            }catch(RejectedExecutionException e){
+                // close() got in between; its final flush delivers this change
+            }
+        }
+    }
+
+    // Runs on the flusher thread only, so batches are delivered one at a time and in order
+    private void flush(){
+        List<DocumentChange> batch;
+        synchronized(this){
+            if(pending.isEmpty()){
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        List<DocumentChange> shared = Collections.unmodifiableList(batch);
+        for(User user : users){
+            List<DocumentChange> forUser = shared;
+            for(DocumentChange change : batch){
+                if(change.sender == user){
+                    forUser = withoutOwnChanges(batch, user); // only authors need a filtered copy
+                    break;
+                }
+            }
+            if(!forUser.isEmpty()){
+                try{
+                    user.receiveBatch(forUser);
+                }catch(RuntimeException e){
+                    // one failing receiver must not stop the rest of the batch
+                }
+            }
+        }
+        long now = System.nanoTime();
+        for(DocumentChange change : batch){
+            long latency = now - change.createdNanos;
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+        batches.increment();
+        deliveredChanges.add(batch.size());
+    }
+
+    private static List<DocumentChange> withoutOwnChanges(List<DocumentChange> batch, User user){
+        List<DocumentChange> filtered = new ArrayList<>(batch.size());
+        for(DocumentChange change : batch){
+            if(change.sender != user){
+                filtered.add(change);
+            }
+        }
+        return filtered;
+    }
+
+    public long batchCount(){
+        return batches.sum();
+    }
+
+    public double averageBatchSize(){
+        long count = batches.sum();
+        return count == 0 ? 0 : deliveredChanges.sum() / (double) count;
+    }
+
+    public long coalescedCount(){
+        return coalesced.sum();
+    }
+
+    public double averageLatencyMillis(){
+        long changes = deliveredChanges.sum();
+        return changes == 0 ? 0 : latencyNanos.sum() / (double) changes / 1_000_000;
+    }
+
+    public double maxLatencyMillis(){
+        return maxLatencyNanos.get() / 1_000_000.0;
+    }
+
+    // Refuses new changes, delivers whatever is still pending and stops the flusher
+    @Override
+    public void close() throws InterruptedException{
+        synchronized(this){
+            if(closed){
+                return;
+            }
+            closed = true;
+        }
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
+
+/*
+Shared document state
+
+The mediators above only relay opaque strings, so concurrent edits cannot be merged and a late joiner has nothing
+to catch up from. OtCollaborativeDocument owns the text and orders every edit (operational transformation with the
+document as the single authority). An edit names the revision it was made against. The document transforms it
+over every operation applied since then, applies it, and broadcasts the transformed operation with the new
+revision, so all users converge on the same text. The text is a Rope, a treap of string chunks keyed by
+position, which makes inserts and deletes O(log n) on multi-megabyte documents. A joining user gets the
+operations since a revision they already have if those are still in history, otherwise a full snapshot.
+*/
+
+// Text as a randomized balanced tree (implicit treap) of chunks; every node knows its subtree length
+class Rope{
+    private static final int MAX_CHUNK = 512;
+    private static final Random PRIORITIES = new Random(42);
+
+    private static final class Node{
+        String chunk;
+        final int priority = PRIORITIES.nextInt();
+        Node left;
+        Node right;
+        int length;
+
+        Node(String chunk){
+            this.chunk = chunk;
+            this.length = chunk.length();
+        }
+    }
+
+    private Node root;
+
+    public Rope(){
+    }
+
+    public Rope(CharSequence text){
+        insert(0, text);
+    }
+
+    public int length(){
+        return length(root);
+    }
+
+    public void insert(int position, CharSequence text){
+        if(text.length() == 0){
+            return;
+        }
+        Node[] parts = split(root, position);
+        Node middle = null;
+        for(int i = 0; i < text.length(); i += MAX_CHUNK){
+            middle = merge(middle, new Node(text.subSequence(i, Math.min(text.length(), i + MAX_CHUNK)).toString()));
+        }
+        root = merge(merge(parts[0], middle), parts[1]);
+    }
+
+    public void delete(int position, int count){
+        if(count <= 0){
+            return;
+        }
+        Node[] head = split(root, position);
+        Node[] tail = split(head[1], count);
+        root = merge(head[0], tail[1]);
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder(length());
+        Deque<Node> stack = new ArrayDeque<>();
+        Node node = root;
+        while(node != null || !stack.isEmpty()){
+            while(node != null){
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            sb.append(node.chunk);
+            node = node.right;
+        }
+        return sb.toString();
+    }
+
+    private static int length(Node node){
+        return node == null ? 0 : node.length;
+    }
+
+    private static Node update(Node node){
+        node.length = length(node.left) + node.chunk.length() + length(node.right);
+        return node;
+    }
+
+    // Splits into the first position chars and the rest, cutting a chunk in two if needed
+    private static Node[] split(Node node, int position){
+        if(node == null){
+            return new Node[]{null, null};
+        }
+        int leftLength = length(node.left);
+        if(position <= leftLength){
+            Node[] parts = split(node.left, position);
+            node.left = parts[1];
+            return new Node[]{parts[0], update(node)};
+        }
+        int end = leftLength + node.chunk.length();
+        if(position >= end){
+            Node[] parts = split(node.right, position - end);
+            node.right = parts[0];
+            return new Node[]{update(node), parts[1]};
+        }
+        int cut = position - leftLength;
+        Node rest = merge(new Node(node.chunk.substring(cut)), node.right);
+        node.chunk = node.chunk.substring(0, cut);
+        node.right = null;
+        return new Node[]{update(node), rest};
+    }
+
+    private static Node merge(Node a, Node b){
+        if(a == null){
+            return b;
+        }
+        if(b == null){
+            return a;
+        }
+        if(a.priority > b.priority){
+            a.right = merge(a.right, b);
+            return update(a);
+        }
+        b.left = merge(a, b.left);
+        return update(b);
+    }
+}
+
+// An insert of text at a position, or a delete of one or more ranges, all in the coordinates of the
+// revision the operation was made against. Deletes keep several ranges so that transforming them over an
+// insert that lands inside the range still yields a single operation.
+final class TextOperation{
+    final int position;    // insert position
+    final String text;     // inserted text, null for deletes
+    final int[] starts;    // delete ranges, sorted and disjoint
+    final int[] lengths;
+
+    private TextOperation(int position, String text, int[] starts, int[] lengths){
+        this.position = position;
+        this.text = text;
+        this.starts = starts;
+        this.lengths = lengths;
+    }
+
+    public static TextOperation insert(int position, String text){
+        return new TextOperation(position, text, null, null);
+    }
+
+    public static TextOperation delete(int position, int count){
+        return new TextOperation(0, null, new int[]{position}, new int[]{count});
+    }
+
+    public boolean isInsert(){
+        return text != null;
+    }
+
+    public void applyTo(Rope rope){
+        if(isInsert()){
+            rope.insert(Math.min(position, rope.length()), text);
+            return;
+        }
+        for(int i = starts.length - 1; i >= 0; i--){ // back to front keeps earlier starts valid
+            int start = Math.min(starts[i], rope.length());
+            rope.delete(start, Math.min(lengths[i], rope.length() - start));
+        }
+    }
+
+    // Rewrites this operation so it applies after 'applied', which was made against the same revision
+    public TextOperation transform(TextOperation applied){
+        if(isInsert()){
+            if(applied.isInsert()){
+                return applied.position <= position ? insert(position + applied.text.length(), text) : this;
+            }
+            return insert(position - applied.deletedBefore(position), text);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        for(int i = 0; i < starts.length; i++){
+            int start = starts[i];
+            int end = start + lengths[i];
+            if(applied.isInsert()){
+                int at = applied.position;
+                int shift = applied.text.length();
+                if(at <= start){
+                    ranges.add(new int[]{start + shift, end + shift});
+                }else if(at >= end){
+                    ranges.add(new int[]{start, end});
+                }else{
+                    ranges.add(new int[]{start, at}); // keep the concurrently inserted text
+                    ranges.add(new int[]{at + shift, end + shift});
+                }
+            }else{
+                // drop what the other delete already removed, then shift into the new coordinates
+                int cursor = start;
+                for(int j = 0; j < applied.starts.length && cursor < end; j++){
+                    int otherStart = applied.starts[j];
+                    int otherEnd = otherStart + applied.lengths[j];
+                    if(otherEnd <= cursor){
+                        continue;
+                    }
+                    if(otherStart >= end){
+                        break;
+                    }
+                    if(otherStart > cursor){
+                        addShifted(ranges, cursor, otherStart, applied);
+                    }
+                    cursor = Math.max(cursor, otherEnd);
+                }
+                if(cursor < end){
+                    addShifted(ranges, cursor, end, applied);
+                }
+            }
+        }
+        return deleteRanges(ranges);
+    }
+
+    private static void addShifted(List<int[]> ranges, int start, int end, TextOperation delete){
+        int shift = delete.deletedBefore(start);
+        ranges.add(new int[]{start - shift, end - shift});
+    }
+
+    // Characters this delete removes before a position; a position inside a range maps to its start
+    private int deletedBefore(int pos){
+        int removed = 0;
+        for(int i = 0; i < starts.length && starts[i] < pos; i++){
+            removed += Math.min(lengths[i], pos - starts[i]);
+        }
+        return removed;
+    }
+
+    static TextOperation deleteRanges(List<int[]> ranges){
+        List<int[]> merged = new ArrayList<>();
+        for(int[] range : ranges){
+            if(range[1] <= range[0]){
+                continue;
+            }
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if(last != null && last[1] >= range[0]){
+                last[1] = Math.max(last[1], range[1]);
+            }else{
+                merged.add(range);
+            }
+        }
+        int[] starts = new int[merged.size()];
+        int[] lengths = new int[merged.size()];
+        for(int i = 0; i < starts.length; i++){
+            starts[i] = merged.get(i)[0];
+            lengths[i] = merged.get(i)[1] - merged.get(i)[0];
+        }
+        return new TextOperation(0, null, starts, lengths);
+    }
+
+    @Override
+    public String toString(){
+        if(isInsert()){
+            return "insert@" + position + " \"" + text + "\"";
+        }
+        StringBuilder sb = new StringBuilder("delete");
+        for(int i = 0; i < starts.length; i++){
+            sb.append(' ').append(starts[i]).append('+').append(lengths[i]);
+        }
+        return sb.toString();
+    }
+}
+
+class OtCollaborativeDocument implements DocumentSessionMediator{
+    private final CopyOnWriteArrayList<User> users = new CopyOnWriteArrayList<>();
+    private final Rope text;
+    private final byte[][] history;          // ring of the most recent operations, as encoded frames
+    private final User[] authors;            // who made each operation in history
+    private long revision;
+    private long oldest;                     // history holds no operations from before this revision
+    private OpLog log;
+    private int snapshotEvery;
+
+    public OtCollaborativeDocument(String initialText, int historySize){
+        this.text = new Rope(initialText);
+        this.history = new byte[historySize][];
+        this.authors = new User[historySize];
+    }
+
+    // A document at snapshotRevision plus the given operations, as stored before a restart or an eviction.
+    // Only those operations are in history, so a client from before snapshotRevision gets a snapshot.
+    public static OtCollaborativeDocument restore(String snapshot, long snapshotRevision, List<TextOperation> operations, int historySize){
+        OtCollaborativeDocument document = new OtCollaborativeDocument(snapshot, historySize);
+        synchronized(document){
+            document.revision = snapshotRevision;
+            document.oldest = snapshotRevision;
+            for(TextOperation operation : operations){
+                operation.applyTo(document.text);
+                document.history[(int) (document.revision % historySize)] = OpCodec.encodeFrame(operation);
+                document.revision++;
+            }
+        }
+        return document;
+    }
+
+    // Rebuilds a document from its latest snapshot and the operations logged after it, and keeps logging to it
+    public static OtCollaborativeDocument open(OpLog log, int historySize, int snapshotEvery) throws IOException{
+        OpLog.Resume latest = log.latest();
+        OtCollaborativeDocument document = restore(latest.snapshot, latest.snapshotRevision, latest.operations, historySize);
+        document.attachLog(log, snapshotEvery);
+        return document;
+    }
+
+    // Persists every operation and compacts the log into a snapshot every snapshotEvery operations
+    public synchronized void attachLog(OpLog log, int snapshotEvery) throws IOException{
+        if(log.lastRevision() > revision){
+            throw new IllegalStateException("Log is at revision " + log.lastRevision() + ", ahead of the document at "
+                    + revision + "; open the document from the log instead");
+        }
+        this.log = log;
+        this.snapshotEvery = snapshotEvery;
+        log.compact(revision, text.toString());
+    }
+
+    @Override
+    public void join(User user){
+        join(user, -1);
+    }
+
+    // Sends only the operations after knownRevision when they are still in memory or in the op log,
+    // else a snapshot
+    public void join(User user, long knownRevision){
+        synchronized(this){
+            users.addIfAbsent(user);
+            if(knownRevision >= 0 && inHistory(knownRevision)){
+                for(long r = knownRevision; r < revision; r++){
+                    int slot = (int) (r % history.length);
+                    user.receiveFrame(history[slot], r + 1, authors[slot]);
+                }
+                return;
+            }
+            if(log != null && knownRevision >= 0 && knownRevision <= revision){
+                try{
+                    OpLog.Resume resume = log.resume(knownRevision);
+                    if(resume.snapshot == null){
+                        long r = knownRevision;
+                        for(TextOperation operation : resume.operations){
+                            user.receiveOperation(operation, ++r, null);
+                        }
+                        return;
+                    }
+                }catch(IOException e){
+                    // fall back to a snapshot from memory
+                }
+            }
+            user.receiveSnapshot(text.toString(), revision);
+        }
+    }
+
+    // Opaque changes from the basic User API are appended at the end of the document
+    @Override
+    public void broadcastChange(String change, User sender){
+        long base;
+        int end;
+        synchronized(this){
+            base = revision;
+            end = text.length();
+        }
+        submit(TextOperation.insert(end, change), base, sender);
+    }
+
+    // Applies an edit made against baseRevision and returns the revision it became
+    public long submit(TextOperation operation, long baseRevision, User sender){
+        TextOperation transformed = operation;
+        long applied;
+        synchronized(this){
+            if(!inHistory(baseRevision)){
+                throw new IllegalStateException("Revision " + baseRevision + " is no longer in history, resync first");
+            }
+            for(long r = baseRevision; r < revision; r++){
+                transformed = transformed.transform(OpCodec.decodeFrame(history[(int) (r % history.length)]));
+            }
+            // Logged before anything changes in memory: if that fails the document is exactly as it was
+            persist(transformed, revision + 1);
+            transformed.applyTo(text);
+            byte[] frame = OpCodec.encodeFrame(transformed);
+            history[(int) (revision % history.length)] = frame;
+            authors[(int) (revision % history.length)] = sender;
+            applied = ++revision;
+            compactIfDue(applied);
+            // delivered under the lock so every user sees operations in revision order
+            for(User user : users){
+                if(user != sender){
+                    user.receiveFrame(frame, applied, sender);
+                }
+            }
+        }
+        return applied;
+    }
+
+    private boolean inHistory(long knownRevision){
+        return knownRevision >= oldest && knownRevision <= revision && revision - knownRevision <= history.length;
+    }
+
+    private void persist(TextOperation operation, long applied){
+        if(log == null){
+            return;
+        }
+        try{
+            log.append(operation, applied);
+        }catch(IOException e){
+            throw new UncheckedIOException("Could not persist revision " + applied, e);
+        }
+    }
+
+    // The operation is already in the log, so a failed snapshot loses nothing; the next one retries
+    private void compactIfDue(long applied){
+        if(log == null || applied % snapshotEvery != 0){
+            return;
+        }
+        try{
+            log.compact(applied, text.toString());
+        }catch(IOException e){
+            System.err.println("Snapshot at revision " + applied + " failed: " + e);
+        }
+    }
+
+    public void leave(User user){
+        users.remove(user);
+    }
+
+    public int userCount(){
+        return users.size();
+    }
+
+    public synchronized long revision(){
+        return revision;
+    }
+
+    public synchronized int length(){
+        return text.length();
+    }
+
+    public synchronized String text(){
+        return text.toString();
+    }
+}
+
+/*
+Binary operations and the op log
+
+OpCodec writes an operation as a tag byte followed by varints: positions are zig-zag deltas from the previous
+operation's position, and an insert only carries the part of its text that does not repeat the previous insert's
+prefix. A frame (used on the broadcast path and in memory history) is encoded with a fresh Encoder so it decodes
+on its own; the op log keeps one Encoder per segment, so consecutive records compress against each other.
+
+OpLog appends length-prefixed records to segment files named by their first revision and starts a new segment
+when the current one is full. append() returns only once the record has left the process, and with
+SyncPolicy.FSYNC once it is on the device, so an operation the document applied and broadcast survives a crash. compact() writes a snapshot of the text at a revision and deletes the segments and
+snapshots it makes redundant. resume() returns what a reconnecting user is missing: the operations after the
+revision they have, or the latest snapshot plus the operations after it when the log no longer goes back that far.
+*/
+
+class OpCodec{
+    private static final int INSERT = 0;
+    private static final int DELETE = 1;
+
+    static final class Encoder{
+        private int lastPosition;
+        private String lastText = "";
+
+        public void encode(TextOperation operation, ByteArrayOutputStream out){
+            if(operation.isInsert()){
+                out.write(INSERT);
+                writeSigned(out, operation.position - lastPosition);
+                int shared = 0;
+                int max = Math.min(lastText.length(), operation.text.length());
+                while(shared < max && lastText.charAt(shared) == operation.text.charAt(shared)){
+                    shared++;
+                }
+                if(shared > 0 && Character.isHighSurrogate(operation.text.charAt(shared - 1))){
+                    shared--; // never split a surrogate pair, the suffix would encode a lone half as '?'
+                }
+                byte[] suffix = operation.text.substring(shared).getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, shared);
+                writeVarint(out, suffix.length);
+                out.write(suffix, 0, suffix.length);
+                lastPosition = operation.position;
+                lastText = operation.text;
+            }else{
+                out.write(DELETE);
+                writeVarint(out, operation.starts.length);
+                int previous = lastPosition;
+                for(int i = 0; i < operation.starts.length; i++){
+                    writeSigned(out, operation.starts[i] - previous);
+                    writeVarint(out, operation.lengths[i]);
+                    previous = operation.starts[i] + operation.lengths[i];
+                }
+                if(operation.starts.length > 0){
+                    lastPosition = operation.starts[0];
+                }
+            }
+        }
+    }
+
+    static final class Decoder{
+        private int lastPosition;
+        private String lastText = "";
+
+        public TextOperation decode(ByteBuffer in){
+            int tag = in.get();
+            if(tag == INSERT){
+                int position = lastPosition + (int) readSigned(in);
+                int shared = (int) readVarint(in);
+                byte[] suffix = new byte[(int) readVarint(in)];
+                in.get(suffix);
+                String text = lastText.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+                lastPosition = position;
+                lastText = text;
+                return TextOperation.insert(position, text);
+            }
+            int count = (int) readVarint(in);
+            List<int[]> ranges = new ArrayList<>(count);
+            int previous = lastPosition;
+            for(int i = 0; i < count; i++){
+                int start = previous + (int) readSigned(in);
+                int length = (int) readVarint(in);
+                ranges.add(new int[]{start, start + length});
+                previous = start + length;
+            }
+            if(count > 0){
+                lastPosition = ranges.get(0)[0];
+            }
+            return TextOperation.deleteRanges(ranges);
+        }
+    }
+
+    // Self-contained encoding of one operation
+    public static byte[] encodeFrame(TextOperation operation){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        new Encoder().encode(operation, out);
+        return out.toByteArray();
+    }
+
+    public static TextOperation decodeFrame(byte[] frame){
+        return new Decoder().decode(ByteBuffer.wrap(frame));
+    }
+
+    static void writeVarint(OutputStream out, long value){
+        try{
+            while((value & ~0x7FL) != 0){
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void writeSigned(OutputStream out, long value){
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readVarint(ByteBuffer in){
+        long value = 0;
+        int shift = 0;
+        while(true){
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0){
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static long readSigned(ByteBuffer in){
+        long raw = readVarint(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
+
+class OpLog implements Closeable{
+    // What a reconnecting user needs: an optional snapshot, then the operations after it in order
+    static final class Resume{
+        final String snapshot;
+        final long snapshotRevision;
+        final List<TextOperation> operations;
+
+        Resume(String snapshot, long snapshotRevision, List<TextOperation> operations){
+            this.snapshot = snapshot;
+            this.snapshotRevision = snapshotRevision;
+            this.operations = operations;
+        }
+    }
+
+    // WRITE hands every record to the OS before append returns, which survives a crash of this process;
+    // FSYNC also forces it to the device, which survives losing the machine
+    enum SyncPolicy { WRITE, FSYNC }
+
+    private static final String SEGMENT = "ops-";
+    private static final String SNAPSHOT = "snapshot-";
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final SyncPolicy syncPolicy;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final ByteArrayOutputStream framed = new ByteArrayOutputStream(64);
+    private FileOutputStream out;
+    private BufferedOutputStream buffered;
+    private OpCodec.Encoder encoder;
+    private long segmentBytes;
+    private long lastRevision;
+
+    public OpLog(Path directory, long maxSegmentBytes) throws IOException{
+        this(directory, maxSegmentBytes, SyncPolicy.FSYNC);
+    }
+
+    public OpLog(Path directory, long maxSegmentBytes, SyncPolicy syncPolicy) throws IOException{
+        this.directory = Files.createDirectories(directory);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncPolicy = syncPolicy;
+        // continue after whatever is already on disk; the next append starts a fresh segment
+        List<Long> segments = list(SEGMENT);
+        List<Long> snapshots = list(SNAPSHOT);
+        if(!snapshots.isEmpty()){
+            lastRevision = snapshots.get(snapshots.size() - 1);
+        }
+        if(!segments.isEmpty()){
+            long start = segments.get(segments.size() - 1);
+            lastRevision = Math.max(lastRevision, start - 1 + readSegment(start, Long.MAX_VALUE).size());
+        }
+    }
+
+    public long lastRevision(){
+        return lastRevision;
+    }
+
+    public void append(TextOperation operation, long revision) throws IOException{
+        if(revision != lastRevision + 1){
+            throw new IllegalStateException("Expected revision " + (lastRevision + 1) + " but got " + revision);
+        }
+        if(out == null || segmentBytes >= maxSegmentBytes){
+            startSegment(revision);
+        }
+        record.reset();
+        encoder.encode(operation, record);
+        framed.reset();
+        OpCodec.writeVarint(framed, record.size());
+        record.writeTo(framed);
+        try{
+            framed.writeTo(buffered);
+            buffered.flush();
+            if(syncPolicy == SyncPolicy.FSYNC){
+                out.getFD().sync();
+            }
+        }catch(IOException e){
+            abandonSegment(); // a torn record may be on disk; retrying starts a fresh segment after it
+            throw e;
+        }
+        segmentBytes += framed.size();
+        lastRevision = revision;
+    }
+
+    // Every earlier record was flushed by its own append, so the buffer holds nothing but the failed one and
+    // lastRevision is still the last record that made it. If the failed record did reach the file after all,
+    // the next segment starts at the same revision and readers stop at the segment boundary.
+    private void abandonSegment(){
+        try{
+            out.close();
+        }catch(IOException ignored){
+            // the segment is already unusable
+        }
+        out = null;
+    }
+
+    private void startSegment(long firstRevision) throws IOException{
+        closeSegment();
+        out = new FileOutputStream(directory.resolve(name(SEGMENT, firstRevision)).toFile());
+        buffered = new BufferedOutputStream(out, 1 << 16);
+        encoder = new OpCodec.Encoder();
+        segmentBytes = 0;
+    }
+
+    private void closeSegment() throws IOException{
+        if(out != null){
+            buffered.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+        }
+    }
+
+    public void flush() throws IOException{
+        if(out != null){
+            buffered.flush();
+            out.getFD().sync();
+        }
+    }
+
+    // Stores the text at revision and removes every segment and snapshot it covers
+    public void compact(long revision, String text) throws IOException{
+        Path tmp = directory.resolve(name(SNAPSHOT, revision) + ".tmp");
+        Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, directory.resolve(name(SNAPSHOT, revision)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if(revision >= lastRevision){
+            closeSegment(); // everything written is covered, the next append opens a new segment
+            lastRevision = revision;
+        }
+        List<Long> segments = list(SEGMENT);
+        for(int i = 0; i < segments.size(); i++){
+            boolean current = out != null && i == segments.size() - 1;
+            long end = i + 1 < segments.size() ? segments.get(i + 1) - 1 : lastRevision;
+            if(!current && end <= revision){
+                Files.deleteIfExists(directory.resolve(name(SEGMENT, segments.get(i))));
+            }
+        }
+        for(long snapshot : list(SNAPSHOT)){
+            if(snapshot < revision){
+                Files.deleteIfExists(directory.resolve(name(SNAPSHOT, snapshot)));
+            }
+        }
+    }
+
+    public Resume resume(long knownRevision) throws IOException{
+        flush();
+        List<Long> segments = list(SEGMENT);
+        if(!segments.isEmpty() && knownRevision >= segments.get(0) - 1){
+            return new Resume(null, knownRevision, operationsAfter(segments, knownRevision));
+        }
+        List<Long> snapshots = list(SNAPSHOT);
+        if(snapshots.isEmpty()){
+            throw new IOException("No snapshot in " + directory);
+        }
+        long snapshotRevision = snapshots.get(snapshots.size() - 1);
+        return new Resume(readSnapshot(snapshotRevision), snapshotRevision, operationsAfter(segments, snapshotRevision));
+    }
+
+    // The whole document as of lastRevision(): the latest snapshot (empty text at 0 if there is none yet) and
+    // every operation after it
+    public Resume latest() throws IOException{
+        flush();
+        List<Long> snapshots = list(SNAPSHOT);
+        long snapshotRevision = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        String text = snapshots.isEmpty() ? "" : readSnapshot(snapshotRevision);
+        List<TextOperation> operations = operationsAfter(list(SEGMENT), snapshotRevision);
+        if(snapshotRevision + operations.size() != lastRevision){
+            throw new IOException("Log in " + directory + " has a gap between the snapshot at " + snapshotRevision
+                    + " and revision " + lastRevision);
+        }
+        return new Resume(text, snapshotRevision, operations);
+    }
+
+    private String readSnapshot(long revision) throws IOException{
+        return new String(Files.readAllBytes(directory.resolve(name(SNAPSHOT, revision))), StandardCharsets.UTF_8);
+    }
+
+    private List<TextOperation> operationsAfter(List<Long> segments, long revision) throws IOException{
+        List<TextOperation> operations = new ArrayList<>();
+        for(int i = 0; i < segments.size(); i++){
+            long start = segments.get(i);
+            long next = i + 1 < segments.size() ? segments.get(i + 1) : Long.MAX_VALUE;
+            if(next - 1 <= revision){
+                continue;
+            }
+            List<TextOperation> ops = readSegment(start, next - start);
+            for(int k = 0; k < ops.size(); k++){
+                if(start + k > revision){
+                    operations.add(ops.get(k));
+                }
+            }
+        }
+        return operations;
+    }
+
+    private List<TextOperation> readSegment(long start, long limit) throws IOException{
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(name(SEGMENT, start))));
+        OpCodec.Decoder decoder = new OpCodec.Decoder();
+        List<TextOperation> ops = new ArrayList<>();
+        while(in.hasRemaining() && ops.size() < limit){
+            int length;
+            try{
+                length = (int) OpCodec.readVarint(in);
+            }catch(BufferUnderflowException e){
+                break; // torn length prefix after a crash
+            }
+            if(in.remaining() < length){
+                break; // torn tail after a crash
+            }
+            ByteBuffer frame = in.slice();
+            frame.limit(length);
+            ops.add(decoder.decode(frame));
+            in.position(in.position() + length);
+        }
+        return ops;
+    }
+
+    public long diskBytes() throws IOException{
+        long total = 0;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)){
+            for(Path file : files){
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    private List<Long> list(String prefix) throws IOException{
+        List<Long> revisions = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")){
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                if(!name.endsWith(".tmp")){
+                    revisions.add(Long.parseLong(name.substring(prefix.length())));
+                }
+            }
+        }
+        Collections.sort(revisions);
+        return revisions;
+    }
+
+    private static String name(String prefix, long revision){
+        return prefix + String.format("%020d", revision);
+    }
+
+    @Override
+    public void close() throws IOException{
+        closeSegment();
+    }
+}
+
+// Round trip of operations through the op log and through frames, including text outside the BMP whose
+// surrogate pairs share a high half with the previous insert. Run with:
+// java Behavioural_Design_Patter.MediatorPattern.OpCodecRoundTripCheck
+class OpCodecRoundTripCheck{
+    public static void main(String[] args) throws IOException{
+        List<TextOperation> operations = new ArrayList<>();
+        operations.add(TextOperation.insert(0, "\uD83D\uDE00"));          // grinning face
+        operations.add(TextOperation.insert(2, "\uD83D\uDE01"));          // same high surrogate
+        operations.add(TextOperation.insert(4, "\uD83D\uDE01 text \uD834\uDD1E"));
+        operations.add(TextOperation.insert(0, "plain"));
+        operations.add(TextOperation.delete(0, 2));
+        operations.add(TextOperation.insert(1, "\u00e9\u4e2d\uD83D\uDE00"));
+
+        Path directory = Files.createTempDirectory("oplog-check");
+        try(OpLog log = new OpLog(directory, 1 << 20)){
+            for(int i = 0; i < operations.size(); i++){
+                log.append(operations.get(i), i + 1);
+            }
+            List<TextOperation> read = log.resume(0).operations;
+            for(int i = 0; i < operations.size(); i++){
+                check("log", operations.get(i), read.get(i));
+                check("frame", operations.get(i), OpCodec.decodeFrame(OpCodec.encodeFrame(operations.get(i))));
+            }
+        }
+        // A crash in the middle of a length prefix leaves a lone continuation byte at the end of the segment
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "ops-*")){
+            for(Path file : files){
+                Files.write(file, new byte[]{(byte) 0x80}, StandardOpenOption.APPEND);
+            }
+        }
+        try(OpLog log = new OpLog(directory, 1 << 20)){
+            if(log.lastRevision() != operations.size() || log.resume(0).operations.size() != operations.size()){
+                throw new IllegalStateException("torn length prefix was not treated as the end of the log");
+            }
+        }
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)){
+            for(Path file : files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        System.out.println("Op codec round trip: " + operations.size() + " operations OK");
+    }
+
+    private static void check(String path, TextOperation expected, TextOperation actual){
+        if(!expected.toString().equals(actual.toString()) || (expected.isInsert() && !expected.text.equals(actual.text))){
+            throw new IllegalStateException(path + " round trip changed " + expected + " into " + actual);
+        }
+    }
+}
+
+/*
+Many documents
+
+DocumentSessionManager hosts a large number of documents on a fixed set of shard threads. Every document belongs to
+exactly one shard, and everything that touches it (join, edits, eviction) runs on that shard's thread, so a
+document only ever has a single writer. Shard state is plain HashMaps with no locking of its own; the monitor of
+OtCollaborativeDocument is still taken for every operation, but only ever by the shard thread, so it is never
+contended. Documents are loaded on first use and, when a shard goes over its share of the memory budget, the
+least recently used documents with nobody connected are saved with their revision and evicted. A reloaded
+document continues at that revision, so a client reconnecting with the revision it had gets a snapshot rather
+than edits transformed against the wrong base. Per-shard load metrics show which documents are hot, and
+moveDocument hands a document to another shard to rebalance.
+*/
+
+class DocumentSessionManager implements AutoCloseable{
+    // What the loader returns and the saver stores: a document's text and the revision it is at
+    static final class StoredDocument{
+        static final StoredDocument EMPTY = new StoredDocument("", 0);
+
+        final String text;
+        final long revision;
+
+        StoredDocument(String text, long revision){
+            this.text = text;
+            this.revision = revision;
+        }
+    }
+
+    private static final class Hosted{
+        final OtCollaborativeDocument document;
+        long operations;
+
+        Hosted(OtCollaborativeDocument document){
+            this.document = document;
+        }
+
+        long estimatedBytes(){
+            return 2L * document.length() + 64L * document.userCount() + 1_024;
+        }
+    }
+
+    // Load of one shard at the moment snapshotLoad() ran
+    static final class ShardLoad{
+        final int shard;
+        final int documents;
+        final long estimatedBytes;
+        final long operations;
+        final int queueDepth;
+        final String hottestDocument;
+        final long hottestOperations;
+
+        ShardLoad(int shard, int documents, long estimatedBytes, long operations, int queueDepth, String hottestDocument, long hottestOperations){
+            this.shard = shard;
+            this.documents = documents;
+            this.estimatedBytes = estimatedBytes;
+            this.operations = operations;
+            this.queueDepth = queueDepth;
+            this.hottestDocument = hottestDocument;
+            this.hottestOperations = hottestOperations;
+        }
+
+        @Override
+        public String toString(){
+            return "shard " + shard + ": docs=" + documents + " bytes=" + estimatedBytes + " ops=" + operations
+                    + " queued=" + queueDepth + " hottest=" + hottestDocument + "(" + hottestOperations + ")";
+        }
+    }
+
+    private final class Shard{
+        final int index;
+        final ThreadPoolExecutor loop;
+        final LinkedHashMap<String, Hosted> documents = new LinkedHashMap<>(16, 0.75f, true); // access order = LRU
+        long estimatedBytes;
+        long operations;
+
+        Shard(int index){
+            this.index = index;
+            this.loop = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "document-shard-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        // Runs on the shard thread; re-posts the task if the document moved to another shard meanwhile
+        void run(String documentId, Consumer<Hosted> task){
+            loop.execute(() -> {
+                Shard owner = shardOf(documentId);
+                if(owner != this){
+                    owner.run(documentId, task);
+                    return;
+                }
+                Hosted hosted = documents.get(documentId);
+                if(hosted == null){
+                    StoredDocument stored = loader.apply(documentId);
+                    hosted = new Hosted(OtCollaborativeDocument.restore(stored.text, stored.revision, List.of(), historySize));
+                    documents.put(documentId, hosted);
+                    estimatedBytes += hosted.estimatedBytes();
+                }
+                long before = hosted.estimatedBytes();
+                task.accept(hosted);
+                estimatedBytes += hosted.estimatedBytes() - before;
+                if(estimatedBytes > shardBudgetBytes){
+                    evict(documentId);
+                }
+            });
+        }
+
+        private void evict(String keep){
+            Iterator<Map.Entry<String, Hosted>> it = documents.entrySet().iterator();
+            while(estimatedBytes > shardBudgetBytes && it.hasNext()){
+                Map.Entry<String, Hosted> entry = it.next();
+                Hosted hosted = entry.getValue();
+                if(entry.getKey().equals(keep) || hosted.document.userCount() > 0){
+                    continue;
+                }
+                saver.accept(entry.getKey(), new StoredDocument(hosted.document.text(), hosted.document.revision()));
+                estimatedBytes -= hosted.estimatedBytes();
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        ShardLoad load(){
+            String hottest = null;
+            long hottestOps = 0;
+            for(Map.Entry<String, Hosted> entry : documents.entrySet()){
+                if(entry.getValue().operations > hottestOps){
+                    hottestOps = entry.getValue().operations;
+                    hottest = entry.getKey();
+                }
+            }
+            return new ShardLoad(index, documents.size(), estimatedBytes, operations, loop.getQueue().size(), hottest, hottestOps);
+        }
+    }
+
+    // A DocumentSessionMediator for one document that forwards every call to the document's shard
+    private final class DocumentHandle implements DocumentSessionMediator{
+        private final String documentId;
+
+        DocumentHandle(String documentId){
+            this.documentId = documentId;
+        }
+
+        @Override
+        public void join(User user){
+            shardOf(documentId).run(documentId, hosted -> hosted.document.join(user));
+        }
+
+        @Override
+        public void broadcastChange(String change, User sender){
+            shardOf(documentId).run(documentId, hosted -> {
+                hosted.document.broadcastChange(change, sender);
+                hosted.operations++;
+                shardOf(documentId).operations++;
+            });
+        }
+    }
+
+    private final Shard[] shards;
+    private final Map<String, Shard> placement = new ConcurrentHashMap<>(); // documents moved off their home shard
+    private final Function<String, StoredDocument> loader;
+    private final BiConsumer<String, StoredDocument> saver;
+    private final int historySize;
+    private final long shardBudgetBytes;
+    private final LongAdder evictions = new LongAdder();
+
+    // loader returns the stored document (StoredDocument.EMPTY for a new one), saver stores it again when the
+    // document is evicted
+    public DocumentSessionManager(int shardCount, long memoryBudgetBytes, int historySize,
+                                  Function<String, StoredDocument> loader, BiConsumer<String, StoredDocument> saver){
+        this.shards = new Shard[shardCount];
+        for(int i = 0; i < shardCount; i++){
+            shards[i] = new Shard(i);
+        }
+        this.loader = loader;
+        this.saver = saver;
+        this.historySize = historySize;
+        this.shardBudgetBytes = memoryBudgetBytes / shardCount;
+    }
+
+    private Shard shardOf(String documentId){
+        Shard moved = placement.get(documentId);
+        return moved != null ? moved : shards[(documentId.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    public DocumentSessionMediator mediatorFor(String documentId){
+        return new DocumentHandle(documentId);
+    }
+
+    public CompletableFuture<Long> submit(String documentId, TextOperation operation, long baseRevision, User sender){
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        shardOf(documentId).run(documentId, hosted -> {
+            try{
+                result.complete(hosted.document.submit(operation, baseRevision, sender));
+                hosted.operations++;
+                shardOf(documentId).operations++;
+            }catch(RuntimeException e){
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<String> text(String documentId){
+        CompletableFuture<String> result = new CompletableFuture<>();
+        shardOf(documentId).run(documentId, hosted -> result.complete(hosted.document.text()));
+        return result;
+    }
+
+    public CompletableFuture<Long> revision(String documentId){
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        shardOf(documentId).run(documentId, hosted -> result.complete(hosted.document.revision()));
+        return result;
+    }
+
+    public void leave(String documentId, User user){
+        shardOf(documentId).run(documentId, hosted -> hosted.document.leave(user));
+    }
+
+    // Hands a loaded document to another shard. The target is queued before the placement changes,
+    // so anything routed to the new shard finds the document already there.
+    public CompletableFuture<Void> moveDocument(String documentId, int targetShard){
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Shard target = shards[targetShard];
+        Shard source = shardOf(documentId);
+        if(source == target){
+            done.complete(null);
+            return done;
+        }
+        source.loop.execute(() -> {
+            Hosted hosted = source.documents.remove(documentId);
+            if(hosted != null){
+                source.estimatedBytes -= hosted.estimatedBytes();
+                target.loop.execute(() -> {
+                    target.documents.put(documentId, hosted);
+                    target.estimatedBytes += hosted.estimatedBytes();
+                    done.complete(null);
+                });
+            }else{
+                target.loop.execute(() -> done.complete(null));
+            }
+            placement.put(documentId, target);
+        });
+        return done;
+    }
+
+    // Collected on each shard's own thread, so the numbers of a shard are consistent with each other
+    public List<ShardLoad> snapshotLoad(){
+        List<CompletableFuture<ShardLoad>> loads = new ArrayList<>();
+        for(Shard shard : shards){
+            loads.add(CompletableFuture.supplyAsync(shard::load, shard.loop));
+        }
+        List<ShardLoad> result = new ArrayList<>();
+        for(CompletableFuture<ShardLoad> load : loads){
+            result.add(load.join());
+        }
+        return result;
+    }
+
+    public long evictionCount(){
+        return evictions.sum();
+    }
+
+    @Override
+    public void close() throws InterruptedException{
+        for(Shard shard : shards){
+            shard.loop.shutdown();
+        }
+        for(Shard shard : shards){
+            shard.loop.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
 }
 
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException {
 //         User alice = new User("Alice");
 //         User bob = new User("Bob");
 //         User charlie = new User("Charlie");
@@ -106,5 +1649,150 @@ public class Main {
 
         alice.makeChange("Added project title");
         bob.makeChange("Corrected grammer in paragraph 2");
+
+        System.out.println();
+
+        // Large session: 10k quiet participants and one that cannot keep up
+        ConcurrentCollaborativeDocument session = new ConcurrentCollaborativeDocument(4, 16, 50);
+        User editor = new User("Editor", session);
+        session.join(editor);
+        for(int i = 0; i < 10_000; i++){
+            session.join(new User("Reader" + i, session){
+                @Override
+                public void receiveChange(String change, User sender){
+                }
+            });
+        }
+        session.join(new User("SlowReader", session){
+            @Override
+            public void receiveChange(String change, User sender){
+                try{
+                    Thread.sleep(10);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        long start = System.nanoTime();
+        for(int i = 0; i < 500; i++){
+            session.broadcastChange("keystroke " + i, editor);
+        }
+        long fanOutMicros = (System.nanoTime() - start) / 1_000 / 500;
+        session.close();
+        System.out.println("Fan-out per change: " + fanOutMicros + " us, delivered: " + session.deliveredCount()
+                + ", dropped: " + session.droppedCount() + ", evicted: " + session.evictedCount()
+                + ", members: " + session.memberCount());
+
+        System.out.println();
+
+        // Typing session: keystrokes are merged per sender and delivered as one batch per user
+        BatchingCollaborativeDocument typing = new BatchingCollaborativeDocument(10, 1_000, String::concat);
+        User writer = new User("Writer", typing);
+        User reviewer = new User("Reviewer", typing){
+            @Override
+            public void receiveBatch(List<DocumentChange> changes){
+                for(DocumentChange change : changes){
+                    System.out.println(name + " got from " + change.sender.name + ": \"" + change.text + "\"");
+                }
+            }
+        };
+        typing.join(writer);
+        typing.join(reviewer);
+        for(char c : "Hello team".toCharArray()){
+            typing.broadcastChange(String.valueOf(c), writer);
+        }
+        typing.close();
+        System.out.printf("Batches: %d, avg size: %.1f, coalesced: %d, avg latency: %.2f ms%n",
+                typing.batchCount(), typing.averageBatchSize(), typing.coalescedCount(), typing.averageLatencyMillis());
+
+        System.out.println();
+
+        // Concurrent edits against the same revision are merged by the document
+        OtCollaborativeDocument shared = new OtCollaborativeDocument("Hello world", 1_000);
+        User ana = new User("Ana", shared);
+        User ben = new User("Ben", shared);
+        shared.join(ana);
+        shared.join(ben);
+        long base = shared.revision();
+        shared.submit(TextOperation.insert(5, ","), base, ana);        // "Hello, world"
+        shared.submit(TextOperation.delete(6, 5), base, ben);          // ben removes "world" from the old text
+        shared.submit(TextOperation.insert(11, "!"), base, ana);       // and ana appends to the old text
+        System.out.println("Merged text: \"" + shared.text() + "\"");
+        User late = new User("Late", shared);
+        shared.join(late, 1);                                         // catches up with two operations
+
+        // Throughput on a multi-megabyte document
+        StringBuilder big = new StringBuilder();
+        while(big.length() < 4_000_000){
+            big.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        OtCollaborativeDocument large = new OtCollaborativeDocument(big.toString(), 10_000);
+        Random random = new Random(7);
+        long start2 = System.nanoTime();
+        int ops = 100_000;
+        for(int i = 0; i < ops; i++){
+            int at = random.nextInt(large.length());
+            large.submit(i % 3 == 0 ? TextOperation.delete(at, 3) : TextOperation.insert(at, "xy"), large.revision(), null);
+        }
+        double seconds = (System.nanoTime() - start2) / 1e9;
+        System.out.printf("%d ops on a %d MB document: %.0f ops/sec%n", ops, big.length() / 1_000_000, ops / seconds);
+
+        // Persisted session: a user who drops out resumes from the revision they had
+        Path logDir = Files.createTempDirectory("doc-log");
+        OtCollaborativeDocument persisted = new OtCollaborativeDocument("", 100);
+        try(OpLog log = new OpLog(logDir, 4_096)){
+            persisted.attachLog(log, 5_000);
+            User typist = new User("Typist", persisted);
+            for(int i = 0; i < 12_000; i++){
+                persisted.submit(TextOperation.insert(persisted.length(), "word" + (i % 10) + " "), persisted.revision(), typist);
+            }
+            OpLog.Resume resume = log.resume(11_500);
+            System.out.println("Resume from 11500: " + resume.operations.size() + " ops, snapshot " + (resume.snapshot != null)
+                    + "; resume from 10: snapshot at " + log.resume(10).snapshotRevision + " + " + log.resume(10).operations.size() + " ops");
+            System.out.println("Log on disk: " + log.diskBytes() + " bytes for " + persisted.length() + " chars of text");
+            System.out.println("Frame for a typical edit: " + OpCodec.encodeFrame(TextOperation.insert(123_456, "word ")).length + " bytes");
+        }
+
+        // After a restart the document comes back from its log at the revision it had, so a reconnecting
+        // client's revision still means the same text
+        try(OpLog log = new OpLog(logDir, 4_096)){
+            OtCollaborativeDocument reopened = OtCollaborativeDocument.open(log, 100, 5_000);
+            User returning = new User("Returning", reopened);
+            reopened.join(returning, reopened.revision() - 2);
+            reopened.submit(TextOperation.insert(0, "Title "), reopened.revision() - 1, returning);
+            System.out.println("Reopened at revision " + (reopened.revision() - 1) + ", same text: "
+                    + reopened.text().substring(6).equals(persisted.text()) + ", log now at " + log.lastRevision());
+        }
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(logDir)){
+            for(Path file : files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(logDir);
+
+        // Many documents on four shard threads, with a memory budget that forces evictions
+        Map<String, DocumentSessionManager.StoredDocument> storage = new ConcurrentHashMap<>();
+        try(DocumentSessionManager manager = new DocumentSessionManager(4, 1_000_000, 64,
+                id -> storage.getOrDefault(id, DocumentSessionManager.StoredDocument.EMPTY), storage::put)){
+            for(int i = 0; i < 20_000; i++){
+                String id = "doc-" + (i % 10 == 0 ? 0 : i % 500);
+                manager.mediatorFor(id).broadcastChange("edit " + i + " ", null);
+            }
+            List<DocumentSessionManager.ShardLoad> loads = manager.snapshotLoad();
+            loads.forEach(System.out::println);
+            DocumentSessionManager.ShardLoad busiest = Collections.max(loads, Comparator.comparingLong(l -> l.operations));
+            int quietest = Collections.min(loads, Comparator.comparingLong(l -> l.operations)).shard;
+            manager.moveDocument(busiest.hottestDocument, quietest).join();
+            long revision = manager.revision(busiest.hottestDocument).join();
+            manager.submit(busiest.hottestDocument, TextOperation.insert(0, "after move "), revision, null).join();
+            System.out.println("Moved " + busiest.hottestDocument + " to shard " + quietest + ", evictions: " + manager.evictionCount()
+                    + ", text starts with: " + manager.text(busiest.hottestDocument).join().substring(0, 11));
+            for(Map.Entry<String, DocumentSessionManager.StoredDocument> evicted : storage.entrySet()){
+                // every document other than doc-0 got 40 edits, however often it was evicted in between
+                System.out.println(evicted.getKey() + " was saved at revision " + evicted.getValue().revision
+                        + " and is now at revision " + manager.revision(evicted.getKey()).join());
+                break;
+            }
+        }
     }
 }
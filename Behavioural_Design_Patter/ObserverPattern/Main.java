@@ -2,7 +2,12 @@
 
 package Behavioural_Design_Patter.ObserverPattern;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 //Let’s say we’re building a simple YouTube-like Notification System. Whenever a creator uploads a new video, all their subscribers should get notified.
 
@@ -41,6 +46,16 @@ class YoutubeChannel1 {
 
 interface Subscriber{
     void update(String videoTitle);
+
+    // A subscriber that returns a transport is delivered to through it, in batches of one pre-rendered payload,
+    // and update() is not called for those uploads; address() is its recipient on that transport.
+    default NotificationTransport transport(){
+        return null;
+    }
+
+    default String address(){
+        return null;
+    }
 }
 
 // ==============================
@@ -49,27 +64,778 @@ interface Subscriber{
 
 class EmailSubscriber implements Subscriber{
     private String email;
+    private final EmailTransport transport;
 
     public EmailSubscriber(String email){
+        this(email, null);
+    }
+
+    public EmailSubscriber(String email, EmailTransport transport){
         this.email = email;
+        this.transport = transport;
     }
 
     @Override
     public void update(String videTitle){
-        System.out.println("Email sent to " + email + ": New video published: " + videTitle);
+        if(transport == null){
+            System.out.println("Email sent to " + email + ": New video published: " + videTitle);
+            return;
+        }
+        transport.send("New video: " + videTitle, "New video published: " + videTitle, List.of(email));
+    }
+
+    @Override
+    public NotificationTransport transport(){
+        return transport;
+    }
+
+    @Override
+    public String address(){
+        return email;
+    }
+
+    @Override
+    public String toString(){
+        return "email " + email;
     }
 }
 
 class MobileAppSubscriber implements Subscriber{
     private String username;
+    private final PushTransport transport;
 
     public MobileAppSubscriber(String username){
+        this(username, null);
+    }
+
+    public MobileAppSubscriber(String username, PushTransport transport){
         this.username = username;
+        this.transport = transport;
     }
 
     @Override
     public void update(String videoTitle){
-        System.out.println("In-app notification for " + username + ": New Video - " + videoTitle);
+        if(transport == null){
+            System.out.println("In-app notification for " + username + ": New Video - " + videoTitle);
+            return;
+        }
+        transport.multicast(("New Video - " + videoTitle).getBytes(StandardCharsets.UTF_8), List.of(username));
+    }
+
+    @Override
+    public NotificationTransport transport(){
+        return transport;
+    }
+
+    @Override
+    public String address(){
+        return username;
+    }
+
+    @Override
+    public String toString(){
+        return "app user " + username;
+    }
+}
+
+// ==============================
+// Subscriber registry
+// ==============================
+
+// A channel's subscribers in fixed-size chunks of slots; a subscriber's slot is its compact id within this
+// registry. Removal frees the slot onto a free list, so unsubscribe is O(1) and the id is reused by the next
+// subscribe. The reverse index is an open-addressing identity table of plain arrays, so a subscriber costs a few
+// array cells and no objects of its own. snapshot() is O(1): it only bumps an epoch, and writers copy a chunk (or
+// the chunk table) before changing it when a snapshot taken since might be reading it. A fan-out iterating a
+// snapshot therefore sees exactly the subscribers at snapshot time, without locks, while subscribe and
+// unsubscribe keep going.
+// Subscribers are told apart by identity. Unlike the plain list the channel used to keep, subscribing the same
+// object twice registers it once (so it is notified once), and unsubscribe removes that very object, never a
+// different one that merely equals() it.
+class SubscriberRegistry{
+    static final int CHUNK_SIZE = 4_096;
+    static final int NONE = -1;
+
+    private static final class Chunk{
+        final Subscriber[] slots;   // null marks a free slot
+        final int epoch;
+
+        Chunk(Subscriber[] slots, int epoch){
+            this.slots = slots;
+            this.epoch = epoch;
+        }
+    }
+
+    private final IdentitySlotMap slotOf = new IdentitySlotMap();
+    private Chunk[] chunks = new Chunk[0];
+    private int chunksEpoch;
+    private int epoch;
+    private int highWater;                               // slots ever used
+    private int size;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    public synchronized boolean add(Subscriber subscriber){
+        if(slotOf.get(subscriber) != NONE){
+            return false;
+        }
+        int slot;
+        if(freeCount > 0){
+            slot = freeSlots[--freeCount];
+        }else{
+            slot = highWater++;
+            if(slot / CHUNK_SIZE == chunks.length){
+                writableTable();
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = new Chunk(new Subscriber[CHUNK_SIZE], epoch);
+            }
+        }
+        writableChunk(slot / CHUNK_SIZE)[slot % CHUNK_SIZE] = subscriber;
+        slotOf.put(subscriber, slot);
+        size++;
+        return true;
+    }
+
+    // Only looks the subscriber up: removing someone who never subscribed changes nothing
+    public synchronized boolean remove(Subscriber subscriber){
+        int slot = slotOf.remove(subscriber);
+        if(slot == NONE){
+            return false;
+        }
+        writableChunk(slot / CHUNK_SIZE)[slot % CHUNK_SIZE] = null;
+        if(freeCount == freeSlots.length){
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        size--;
+        return true;
+    }
+
+    // Compact id of a subscriber, or -1 when it is not subscribed
+    public synchronized int idOf(Subscriber subscriber){
+        return slotOf.get(subscriber);
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized Snapshot snapshot(){
+        epoch++;
+        return new Snapshot(chunks, highWater, size);
+    }
+
+    // Copy on write, only for what a snapshot might still be reading
+    private void writableTable(){
+        if(chunksEpoch != epoch){
+            chunks = chunks.clone();
+            chunksEpoch = epoch;
+        }
+    }
+
+    private Subscriber[] writableChunk(int index){
+        Chunk chunk = chunks[index];
+        if(chunk.epoch != epoch){
+            writableTable();
+            chunk = new Chunk(chunk.slots.clone(), epoch);
+            chunks[index] = chunk;
+        }
+        return chunk.slots;
+    }
+
+    // The subscribers of a channel at one moment; safe to read from any thread
+    static final class Snapshot{
+        private final Chunk[] chunks;
+        private final int slots;
+        private final int size;
+
+        Snapshot(Chunk[] chunks, int slots, int size){
+            this.chunks = chunks;
+            this.slots = slots;
+            this.size = size;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public int slots(){
+            return slots;
+        }
+
+        // Subscribers in slots [from, to), skipping free slots
+        public Iterable<Subscriber> range(int from, int to){
+            return () -> new Iterator<Subscriber>(){
+                private int slot = advance(from);
+
+                private int advance(int s){
+                    while(s < to && chunks[s / CHUNK_SIZE].slots[s % CHUNK_SIZE] == null){
+                        s++;
+                    }
+                    return s;
+                }
+
+                @Override
+                public boolean hasNext(){
+                    return slot < to;
+                }
+
+                @Override
+                public Subscriber next(){
+                    if(slot >= to){
+                        throw new NoSuchElementException();
+                    }
+                    Subscriber subscriber = chunks[slot / CHUNK_SIZE].slots[slot % CHUNK_SIZE];
+                    slot = advance(slot + 1);
+                    return subscriber;
+                }
+            };
+        }
+    }
+
+    // Open addressing identity map from subscriber to slot with backward-shift deletion; NONE means absent
+    private static final class IdentitySlotMap{
+        private Subscriber[] keys = new Subscriber[16];
+        private int[] values = new int[16];
+        private int count;
+
+        private int index(Subscriber key){
+            int h = System.identityHashCode(key) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (keys.length - 1);
+        }
+
+        int get(Subscriber key){
+            for(int i = index(key); keys[i] != null; i = (i + 1) & (keys.length - 1)){
+                if(keys[i] == key){
+                    return values[i];
+                }
+            }
+            return NONE;
+        }
+
+        void put(Subscriber key, int value){
+            if(2 * (count + 1) > keys.length){
+                grow();
+            }
+            int i = index(key);
+            while(keys[i] != null && keys[i] != key){
+                i = (i + 1) & (keys.length - 1);
+            }
+            if(keys[i] == null){
+                keys[i] = key;
+                count++;
+            }
+            values[i] = value;
+        }
+
+        int remove(Subscriber key){
+            int mask = keys.length - 1;
+            int i = index(key);
+            while(keys[i] != null && keys[i] != key){
+                i = (i + 1) & mask;
+            }
+            if(keys[i] == null){
+                return NONE;
+            }
+            int value = values[i];
+            // shift later entries of the run back so lookups never stop at the hole
+            int hole = i;
+            for(int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask){
+                int home = index(keys[j]);
+                if(((j - home) & mask) >= ((j - hole) & mask)){
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = null;
+            count--;
+            return value;
+        }
+
+        private void grow(){
+            Subscriber[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new Subscriber[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            count = 0;
+            for(int i = 0; i < oldKeys.length; i++){
+                if(oldKeys[i] != null){
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
+
+// ==============================
+// Transports and batching
+// ==============================
+
+// Delivers one upload to many recipients per call. Each transport decides how many recipients a call may carry.
+interface NotificationTransport{
+    int maxBatch();
+
+    void deliver(RenderedVideo video, List<String> recipients);
+}
+
+// One call per SMTP (or provider API) request, with any number of recipients
+interface EmailTransport extends NotificationTransport{
+    void send(String subject, String body, List<String> recipients);
+
+    @Override
+    default void deliver(RenderedVideo video, List<String> recipients){
+        send(video.emailSubject, video.emailBody, recipients);
+    }
+}
+
+// One multicast push of the same payload to many app users
+interface PushTransport extends NotificationTransport{
+    void multicast(byte[] payload, List<String> usernames);
+
+    @Override
+    default void deliver(RenderedVideo video, List<String> recipients){
+        multicast(video.pushPayload, recipients);
+    }
+}
+
+// Everything a notification for one upload contains, rendered once and shared by all recipients
+final class RenderedVideo{
+    final String title;
+    final String emailSubject;
+    final String emailBody;
+    final byte[] pushPayload;
+
+    private RenderedVideo(String title){
+        this.title = title;
+        this.emailSubject = "New video: " + title;
+        this.emailBody = "New video published: " + title;
+        this.pushPayload = ("New Video - " + title).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static RenderedVideo of(String title){
+        return new RenderedVideo(title);
+    }
+}
+
+// Subscribers waiting for a full batch on their transport. One per fan-out, shared by its chunks, so batches fill
+// up across chunk boundaries; whatever is left when the last chunk finishes goes out as a final, shorter batch.
+final class TransportBatches{
+    static final class Batch{
+        final NotificationTransport transport;
+        final List<Subscriber> subscribers;
+
+        Batch(NotificationTransport transport, List<Subscriber> subscribers){
+            this.transport = transport;
+            this.subscribers = subscribers;
+        }
+    }
+
+    private final Map<NotificationTransport, List<Subscriber>> waiting = new IdentityHashMap<>();
+
+    // Adds a chunk's subscribers of one transport and returns the batches that are now full
+    synchronized List<Batch> add(NotificationTransport transport, List<Subscriber> subscribers){
+        List<Subscriber> pending = waiting.computeIfAbsent(transport, t -> new ArrayList<>());
+        pending.addAll(subscribers);
+        int size = Math.max(1, transport.maxBatch());
+        if(pending.size() < size){
+            return List.of();
+        }
+        List<Batch> full = new ArrayList<>();
+        int from = 0;
+        for(; pending.size() - from >= size; from += size){
+            full.add(new Batch(transport, new ArrayList<>(pending.subList(from, from + size))));
+        }
+        pending.subList(0, from).clear();
+        return full;
+    }
+
+    synchronized List<Batch> drain(){
+        List<Batch> rest = new ArrayList<>();
+        for(Map.Entry<NotificationTransport, List<Subscriber>> entry : waiting.entrySet()){
+            if(!entry.getValue().isEmpty()){
+                rest.addAll(split(entry.getKey(), entry.getValue()));
+            }
+        }
+        waiting.clear();
+        return rest;
+    }
+
+    static List<Batch> split(NotificationTransport transport, List<Subscriber> subscribers){
+        int size = Math.max(1, transport.maxBatch());
+        List<Batch> batches = new ArrayList<>((subscribers.size() + size - 1) / size);
+        for(int from = 0; from < subscribers.size(); from += size){
+            batches.add(new Batch(transport, new ArrayList<>(subscribers.subList(from, Math.min(from + size, subscribers.size())))));
+        }
+        return batches;
+    }
+}
+
+// Local stand-in for a transport: counts calls and recipients and charges a fixed cost per call, like the
+// round trip to a real provider
+abstract class FakeTransport implements NotificationTransport{
+    private final long callCostNanos;
+    private final int maxBatch;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong recipients = new AtomicLong();
+    final AtomicLong payloadBytes = new AtomicLong();
+
+    FakeTransport(long callCostNanos, int maxBatch){
+        this.callCostNanos = callCostNanos;
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public int maxBatch(){
+        return maxBatch;
+    }
+
+    void call(int recipientCount, long bytes){
+        long until = System.nanoTime() + callCostNanos;
+        while(System.nanoTime() < until){
+            Thread.onSpinWait();
+        }
+        calls.incrementAndGet();
+        recipients.addAndGet(recipientCount);
+        payloadBytes.addAndGet(bytes);
+    }
+}
+
+class FakeEmailTransport extends FakeTransport implements EmailTransport{
+    FakeEmailTransport(long callCostNanos, int maxBatch){
+        super(callCostNanos, maxBatch);
+    }
+
+    @Override
+    public void send(String subject, String body, List<String> recipients){
+        call(recipients.size(), subject.length() + body.length());
+    }
+}
+
+class FakePushTransport extends FakeTransport implements PushTransport{
+    FakePushTransport(long callCostNanos, int maxBatch){
+        super(callCostNanos, maxBatch);
+    }
+
+    @Override
+    public void multicast(byte[] payload, List<String> usernames){
+        call(usernames.size(), payload.length);
+    }
+}
+
+// ==============================
+// Asynchronous fan-out
+// ==============================
+
+// Delivers one upload to a list of subscribers in chunks on a worker pool. At most maxInFlightChunks chunks are
+// queued or running at a time; the next chunk is handed to the pool when one finishes. A subscriber whose update
+// throws is retried later in a chunk of its own, up to maxAttempts, without holding up the others. Subscribers
+// that expose a transport are batched per transport across chunks, up to that transport's maxBatch.
+// Any ExecutorService works, e.g. a virtual thread per task executor on a JDK that has one.
+class NotificationDispatcher{
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "notification-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile NotificationDispatcher shared;
+
+    private final ExecutorService workers;
+    private final int chunkSize;
+    private final int maxInFlightChunks;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+
+    public NotificationDispatcher(ExecutorService workers, int chunkSize, int maxInFlightChunks, int maxAttempts, long retryBackoffMillis){
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+        this.maxInFlightChunks = maxInFlightChunks;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    // A daemon pool with one thread per core, used by channels created without a dispatcher
+    static NotificationDispatcher shared(){
+        if(shared == null){
+            synchronized(NotificationDispatcher.class){
+                if(shared == null){
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                        Thread t = new Thread(r, "notification-worker");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    shared = new NotificationDispatcher(pool, 1_000, 4 * threads, 3, 100);
+                }
+            }
+        }
+        return shared;
+    }
+
+    // Chunks are slot ranges of the snapshot, so nothing is copied up front
+    public FanOut dispatch(SubscriberRegistry.Snapshot subscribers, String videoTitle){
+        FanOut fanOut = new FanOut(videoTitle, subscribers.size());
+        for(int from = 0; from < subscribers.slots(); from += chunkSize){
+            fanOut.pending.add(new Chunk(subscribers.range(from, Math.min(from + chunkSize, subscribers.slots())), 1));
+        }
+        return start(fanOut);
+    }
+
+    private FanOut start(FanOut fanOut){
+        fanOut.openChunks.set(fanOut.pending.size());
+        if(fanOut.pending.isEmpty()){
+            fanOut.finish();
+        }
+        pump(fanOut);
+        return fanOut;
+    }
+
+    public void shutdown(){
+        workers.shutdown();
+    }
+
+    static final class Chunk{
+        final Iterable<Subscriber> subscribers;
+        final int attempt;
+
+        Chunk(Iterable<Subscriber> subscribers, int attempt){
+            this.subscribers = subscribers;
+            this.attempt = attempt;
+        }
+    }
+
+    private void pump(FanOut fanOut){
+        while(true){
+            int inFlight = fanOut.inFlight.get();
+            if(inFlight >= maxInFlightChunks || fanOut.pending.isEmpty()){
+                return;
+            }
+            if(!fanOut.inFlight.compareAndSet(inFlight, inFlight + 1)){
+                continue;
+            }
+            Chunk chunk = fanOut.pending.poll();
+            if(chunk == null){
+                fanOut.inFlight.decrementAndGet();
+                continue;
+            }
+            try{
+                workers.execute(() -> run(fanOut, chunk));
+            }catch(RejectedExecutionException e){
+                fanOut.inFlight.decrementAndGet();
+                for(Subscriber subscriber : chunk.subscribers){
+                    fanOut.fail(subscriber, e);
+                }
+                chunkDone(fanOut);
+            }
+        }
+    }
+
+    private void run(FanOut fanOut, Chunk chunk){
+        List<Subscriber> retry = new ArrayList<>(0);
+        BiConsumer<List<Subscriber>, RuntimeException> failed = (subscribers, e) -> {
+            if(chunk.attempt < maxAttempts){
+                retry.addAll(subscribers);
+            }else{
+                for(Subscriber subscriber : subscribers){
+                    fanOut.fail(subscriber, e);
+                }
+            }
+        };
+        try{
+            Map<NotificationTransport, List<Subscriber>> byTransport = null;
+            for(Subscriber subscriber : chunk.subscribers){
+                try{
+                    NotificationTransport transport = subscriber.transport();
+                    if(transport != null){
+                        if(byTransport == null){
+                            byTransport = new IdentityHashMap<>();
+                        }
+                        byTransport.computeIfAbsent(transport, t -> new ArrayList<>()).add(subscriber);
+                        continue;
+                    }
+                    subscriber.update(fanOut.videoTitle);
+                    fanOut.delivered.incrementAndGet();
+                }catch(RuntimeException e){
+                    failed.accept(List.of(subscriber), e);
+                }catch(Error e){
+                    fanOut.fail(subscriber, e); // not a flaky gateway, so not worth a retry
+                }
+            }
+            if(byTransport != null){
+                for(Map.Entry<NotificationTransport, List<Subscriber>> entry : byTransport.entrySet()){
+                    // Retries are few and already late, so they go out at once instead of waiting for company
+                    List<TransportBatches.Batch> ready = chunk.attempt == 1
+                            ? fanOut.batches.add(entry.getKey(), entry.getValue())
+                            : TransportBatches.split(entry.getKey(), entry.getValue());
+                    for(TransportBatches.Batch batch : ready){
+                        send(fanOut, batch, failed);
+                    }
+                }
+            }
+            retryLater(fanOut, retry, chunk.attempt);
+        }catch(Throwable t){
+            fanOut.abort(t);
+        }finally{
+            // whatever happened to this chunk, its slot is released and the fan-out can still complete
+            fanOut.inFlight.decrementAndGet();
+            chunkDone(fanOut);
+            pump(fanOut);
+        }
+    }
+
+    // A subscriber whose address() throws fails on its own instead of taking the batch down with it
+    private void send(FanOut fanOut, TransportBatches.Batch batch, BiConsumer<List<Subscriber>, RuntimeException> failed){
+        List<Subscriber> sending = new ArrayList<>(batch.subscribers.size());
+        List<String> recipients = new ArrayList<>(batch.subscribers.size());
+        for(Subscriber subscriber : batch.subscribers){
+            try{
+                recipients.add(subscriber.address());
+                sending.add(subscriber);
+            }catch(RuntimeException | Error e){
+                fanOut.fail(subscriber, e);
+            }
+        }
+        if(sending.isEmpty()){
+            return;
+        }
+        try{
+            batch.transport.deliver(fanOut.video, recipients);
+            fanOut.delivered.addAndGet(sending.size());
+        }catch(RuntimeException e){
+            failed.accept(sending, e);
+        }catch(Error e){
+            for(Subscriber subscriber : sending){
+                fanOut.fail(subscriber, e);
+            }
+        }
+    }
+
+    private void retryLater(FanOut fanOut, List<Subscriber> retry, int attempt){
+        if(retry.isEmpty()){
+            return;
+        }
+        fanOut.retries.addAndGet(retry.size());
+        fanOut.openChunks.incrementAndGet();
+        RETRY_TIMER.schedule(() -> {
+            fanOut.pending.add(new Chunk(retry, attempt + 1));
+            pump(fanOut);
+        }, retryBackoffMillis * attempt, TimeUnit.MILLISECONDS);
+    }
+
+    // When the last open chunk finishes, the partly filled batches go out before the fan-out completes. Sending
+    // them counts as an open chunk of its own, so a failed batch can still be retried.
+    private void chunkDone(FanOut fanOut){
+        if(fanOut.openChunks.decrementAndGet() != 0){
+            return;
+        }
+        List<TransportBatches.Batch> rest = fanOut.batches.drain();
+        if(rest.isEmpty()){
+            fanOut.finish();
+            return;
+        }
+        fanOut.openChunks.incrementAndGet();
+        List<Subscriber> retry = new ArrayList<>(0);
+        BiConsumer<List<Subscriber>, RuntimeException> failed = (subscribers, e) -> {
+            if(maxAttempts > 1){
+                retry.addAll(subscribers);
+            }else{
+                for(Subscriber subscriber : subscribers){
+                    fanOut.fail(subscriber, e);
+                }
+            }
+        };
+        for(TransportBatches.Batch batch : rest){
+            send(fanOut, batch, failed);
+        }
+        retryLater(fanOut, retry, 1);
+        chunkDone(fanOut);
+    }
+}
+
+// Handle for one upload's fan-out: progress while it runs, and a future that completes when every
+// subscriber has been delivered to or has failed for good. A subscriber that throws an Error is recorded as
+// failed without a retry; anything that breaks the dispatcher itself completes the future exceptionally.
+class FanOut{
+    private static final int MAX_RECORDED_FAILURES = 100;
+
+    final String videoTitle;
+    final RenderedVideo video;
+    final int total;
+    final ConcurrentLinkedQueue<NotificationDispatcher.Chunk> pending = new ConcurrentLinkedQueue<>();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger openChunks = new AtomicInteger();
+    final TransportBatches batches = new TransportBatches();
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final CompletableFuture<FanOut> completion = new CompletableFuture<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long finishNanos;
+
+    FanOut(String videoTitle, int total){
+        this.videoTitle = videoTitle;
+        this.video = RenderedVideo.of(videoTitle);
+        this.total = total;
+    }
+
+    void fail(Subscriber subscriber, Throwable e){
+        failed.incrementAndGet();
+        if(failures.size() < MAX_RECORDED_FAILURES){
+            failures.add(subscriber + ": " + e);
+        }
+    }
+
+    void abort(Throwable t){
+        finishNanos = System.nanoTime();
+        completion.completeExceptionally(t);
+    }
+
+    void finish(){
+        finishNanos = System.nanoTime();
+        completion.complete(this);
+    }
+
+    public CompletableFuture<FanOut> completion(){
+        return completion;
+    }
+
+    public FanOut join(){
+        return completion.join();
+    }
+
+    public long delivered(){
+        return delivered.get();
+    }
+
+    public long failed(){
+        return failed.get();
+    }
+
+    public long retries(){
+        return retries.get();
+    }
+
+    public double progress(){
+        return total == 0 ? 1.0 : (double) (delivered.get() + failed.get()) / total;
+    }
+
+    public long elapsedMillis(){
+        long end = completion.isDone() ? finishNanos : System.nanoTime();
+        return (end - startNanos) / 1_000_000;
+    }
+
+    // The first failures, for diagnostics
+    public List<String> failures(){
+        synchronized(failures){
+            return new ArrayList<>(failures);
+        }
+    }
+
+    @Override
+    public String toString(){
+        return videoTitle + ": " + delivered() + "/" + total + " delivered, " + failed() + " failed, "
+                + retries() + " retries, " + elapsedMillis() + " ms";
     }
 }
 
@@ -88,12 +854,18 @@ interface Channel{
 // ==============================
 
 class YoutubeChannel implements Channel{
-    private List<Subscriber> subscribers = new ArrayList<>();
+    private final SubscriberRegistry subscribers = new SubscriberRegistry();
     private String channelName;
+    private final NotificationDispatcher dispatcher;
 
 
     public YoutubeChannel(String channelName){
+        this(channelName, NotificationDispatcher.shared());
+    }
+
+    public YoutubeChannel(String channelName, NotificationDispatcher dispatcher){
         this.channelName = channelName;
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -108,14 +880,17 @@ class YoutubeChannel implements Channel{
 
     @Override
     public void notifySubscriber(String VideoTitle){
-        for(Subscriber subscriber : subscribers){
-            subscriber.update(VideoTitle);
-        }
+        publish(VideoTitle);
     }
 
-    public void uploadVideo(String videoTitle){
+    // Hands the fan-out to the dispatcher and returns without waiting for it
+    private FanOut publish(String videoTitle){
+        return dispatcher.dispatch(subscribers.snapshot(), videoTitle);
+    }
+
+    public FanOut uploadVideo(String videoTitle){
         System.out.println(channelName + " uploaded: " + videoTitle + "\n");
-        notifySubscriber(videoTitle);
+        return publish(videoTitle);
     }
 
 }
@@ -130,6 +905,83 @@ class Main{
         happy.subscribe(new MobileAppSubscriber("Harshii"));
         happy.subscribe(new EmailSubscriber("Sudha"));
 
-        happy.uploadVideo("Observer-pattern");
+        happy.uploadVideo("Observer-pattern").join();
+
+        // A big channel with a slow, flaky email gateway
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(pool, 500, 16, 3, 10);
+        YoutubeChannel big = new YoutubeChannel("Big", dispatcher);
+        AtomicLong calls = new AtomicLong();
+        for(int i = 0; i < 200_000; i++){
+            int id = i;
+            big.subscribe(new Subscriber(){
+                @Override
+                public void update(String videoTitle){
+                    long call = calls.incrementAndGet();
+                    if(id % 1_000 == 0){
+                        try{
+                            Thread.sleep(1);       // slow gateway
+                        }catch(InterruptedException e){
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    if(id % 5_000 == 7 && call % 2 == 0){
+                        throw new IllegalStateException("gateway timeout");
+                    }
+                    if(id == 13){
+                        throw new IllegalStateException("mailbox does not exist");
+                    }
+                }
+            });
+        }
+        FanOut fanOut = big.uploadVideo("Scaling observers");
+        System.out.println("uploadVideo returned, progress " + String.format("%.0f%%", 100 * fanOut.progress()));
+        System.out.println(fanOut.join());
+        System.out.println("Failures: " + fanOut.failures());
+
+        // Subscribers come and go while an upload is being delivered
+        YoutubeChannel busy = new YoutubeChannel("Busy", dispatcher);
+        AtomicLong received = new AtomicLong();
+        List<Subscriber> members = new ArrayList<>();
+        for(int i = 0; i < 1_000_000; i++){
+            Subscriber subscriber = videoTitle -> received.incrementAndGet();
+            members.add(subscriber);
+            busy.subscribe(subscriber);
+        }
+        FanOut during = busy.uploadVideo("Churn");
+        long churnStart = System.nanoTime();
+        for(int i = 0; i < 500_000; i++){
+            busy.unsubscribe(members.get(i * 2));
+            busy.subscribe(new MobileAppSubscriber("late-" + i));
+        }
+        long churnNanos = System.nanoTime() - churnStart;
+        during.join();
+        System.out.println("Delivered " + received.get() + " of 1000000 despite churn; 500k unsubscribe+subscribe took "
+                + churnNanos / 1_000_000 + " ms");
+
+        // The same audience through one message per subscriber, then through transport batches. Batches fill up
+        // across the dispatcher's 500-subscriber chunks, so email batches reach the gateway's 1,000 recipients.
+        FakeEmailTransport singleEmail = new FakeEmailTransport(20_000, 1);
+        FakePushTransport singlePush = new FakePushTransport(20_000, 1);
+        FakeEmailTransport batchedEmail = new FakeEmailTransport(20_000, 1_000);
+        FakePushTransport batchedPush = new FakePushTransport(20_000, 500);
+        YoutubeChannel large = new YoutubeChannel("Large", dispatcher);
+        YoutubeChannel largeBatched = new YoutubeChannel("Large, batched", dispatcher);
+        for(int i = 0; i < 100_000; i++){
+            if(i % 3 == 0){
+                large.subscribe(new MobileAppSubscriber("user" + i, singlePush));
+                largeBatched.subscribe(new MobileAppSubscriber("user" + i, batchedPush));
+            }else{
+                large.subscribe(new EmailSubscriber("user" + i + "@example.com", singleEmail));
+                largeBatched.subscribe(new EmailSubscriber("user" + i + "@example.com", batchedEmail));
+            }
+        }
+        FanOut single = large.uploadVideo("One by one").join();
+        FanOut batched = largeBatched.uploadVideo("Batched").join();
+        System.out.println("Per subscriber: " + single + ", " + (singleEmail.calls.get() + singlePush.calls.get()) + " transport calls");
+        System.out.println("Batched:        " + batched + ", " + batchedEmail.calls.get() + " email calls ("
+                + batchedEmail.recipients.get() / Math.max(1, batchedEmail.calls.get()) + " recipients each), "
+                + batchedPush.calls.get() + " push calls");
+        dispatcher.shutdown();
     }
 }
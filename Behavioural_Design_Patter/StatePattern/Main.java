@@ -1,14 +1,32 @@
 package Behavioural_Design_Patter.StatePattern;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Result of a transition attempt. Returned to the caller instead of printing, so any thread
+// driving the order can decide what to do when a move is not allowed.
+enum TransitionResult {
+    APPLIED,
+    REJECTED
+}
 
 // OrderContext class manages the current state of the order
 class OrderContext {
-    private OrderState currentState;
+    // Field updater instead of an AtomicReference per order: one object less for each of the
+    // millions of live orders, same lock-free compareAndSet on the field.
+    private static final AtomicReferenceFieldUpdater<OrderContext, OrderState> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(OrderContext.class, OrderState.class, "currentState");
+
+    private volatile OrderState currentState;
 
     // Constructor initializes the state to ORDER_PLACED
     public OrderContext() {
-        this.currentState = new OrderPlacedState(); // default state
+        this.currentState = OrderPlacedState.INSTANCE; // default state
     }
 
     // Method to set a new state for the order
@@ -17,13 +35,32 @@ class OrderContext {
     }
 
     // Method to move the order to the next state
-    public void next() {
-        currentState.next(this);
+    public TransitionResult next() {
+        while (true) {
+            OrderState from = currentState;
+            OrderState to = from.next();
+            if (to == null) {
+                return TransitionResult.REJECTED;
+            }
+            if (STATE.compareAndSet(this, from, to)) {
+                return TransitionResult.APPLIED;
+            }
+            // another thread moved the order first, re-evaluate against its new state
+        }
     }
 
     // Method to cancel the order
-    public void cancel() {
-        currentState.cancel(this);
+    public TransitionResult cancel() {
+        while (true) {
+            OrderState from = currentState;
+            OrderState to = from.cancel();
+            if (to == null) {
+                return TransitionResult.REJECTED;
+            }
+            if (STATE.compareAndSet(this, from, to)) {
+                return TransitionResult.APPLIED;
+            }
+        }
     }
 
     // Method to get the current state of the order
@@ -32,110 +69,946 @@ class OrderContext {
     }
 }
 
-// OrderState interface defines the behavior of the order states
+// OrderState interface defines the behavior of the order states.
+// States are stateless singletons: a transition only returns the target state (or null when the
+// move is not allowed) and OrderContext applies it, so nothing is allocated per transition.
 interface OrderState {
-    void next(OrderContext context); // Move to the next state
-    void cancel(OrderContext context); // Cancel the order
+    OrderState next(); // State after moving forward, null if not allowed
+    OrderState cancel(); // State after cancelling, null if not allowed
     String getStateName(); // Get the name of the state
+    int getCode(); // Dense index of the state, used by the columnar store
 }
 
 // Concrete states for each stage of the order
 
 // OrderPlacedState handles the behavior when the order is placed
 class OrderPlacedState implements OrderState {
-    public void next(OrderContext context) {
-        context.setState(new PreparingState());
-        System.out.println("Order is now being prepared.");
+    static final OrderPlacedState INSTANCE = new OrderPlacedState();
+
+    private OrderPlacedState() {}
+
+    public OrderState next() {
+        return PreparingState.INSTANCE;
     }
 
-    public void cancel(OrderContext context) {
-        context.setState(new CancelledState());
-        System.out.println("Order has been cancelled.");
+    public OrderState cancel() {
+        return CancelledState.INSTANCE;
     }
 
     public String getStateName() {
         return "ORDER_PLACED";
     }
+
+    public int getCode() {
+        return 0;
+    }
 }
 
 // PreparingState handles the behavior when the order is being prepared
 class PreparingState implements OrderState {
-    public void next(OrderContext context) {
-        context.setState(new OutForDeliveryState());
-        System.out.println("Order is out for delivery.");
+    static final PreparingState INSTANCE = new PreparingState();
+
+    private PreparingState() {}
+
+    public OrderState next() {
+        return OutForDeliveryState.INSTANCE;
     }
 
-    public void cancel(OrderContext context) {
-        context.setState(new CancelledState());
-        System.out.println("Order has been cancelled.");
+    public OrderState cancel() {
+        return CancelledState.INSTANCE;
     }
 
     public String getStateName() {
         return "PREPARING";
     }
+
+    public int getCode() {
+        return 1;
+    }
 }
 
 // OutForDeliveryState handles the behavior when the order is out for delivery
 class OutForDeliveryState implements OrderState {
-    public void next(OrderContext context) {
-        context.setState(new DeliveredState());
-        System.out.println("Order has been delivered.");
+    static final OutForDeliveryState INSTANCE = new OutForDeliveryState();
+
+    private OutForDeliveryState() {}
+
+    public OrderState next() {
+        return DeliveredState.INSTANCE;
     }
 
-    public void cancel(OrderContext context) {
-        System.out.println("Cannot cancel. Order is out for delivery.");
+    public OrderState cancel() {
+        return null; // Cannot cancel, order is out for delivery
     }
 
     public String getStateName() {
         return "OUT_FOR_DELIVERY";
     }
+
+    public int getCode() {
+        return 2;
+    }
 }
 
 // DeliveredState handles the behavior when the order is delivered
 class DeliveredState implements OrderState {
-    public void next(OrderContext context) {
-        System.out.println("Order is already delivered.");
+    static final DeliveredState INSTANCE = new DeliveredState();
+
+    private DeliveredState() {}
+
+    public OrderState next() {
+        return null; // Order is already delivered
     }
 
-    public void cancel(OrderContext context) {
-        System.out.println("Cannot cancel a delivered order.");
+    public OrderState cancel() {
+        return null; // Cannot cancel a delivered order
     }
 
     public String getStateName() {
         return "DELIVERED";
     }
+
+    public int getCode() {
+        return 3;
+    }
 }
 
 // CancelledState handles the behavior when the order is cancelled
 class CancelledState implements OrderState {
-    public void next(OrderContext context) {
-        System.out.println("Cancelled order cannot move to next state.");
+    static final CancelledState INSTANCE = new CancelledState();
+
+    private CancelledState() {}
+
+    public OrderState next() {
+        return null; // Cancelled order cannot move to next state
     }
 
-    public void cancel(OrderContext context) {
-        System.out.println("Order is already cancelled.");
+    public OrderState cancel() {
+        return null; // Order is already cancelled
     }
 
     public String getStateName() {
         return "CANCELLED";
     }
+
+    public int getCode() {
+        return 4;
+    }
 }
 
-public class Main {
+// OrderStateStore keeps every order's state in one byte per order id instead of one OrderContext
+// object per order. Transition tables are derived once from the singleton states above, so batch
+// moves are a tight loop over primitive arrays with no dispatch or allocation.
+// Not thread-safe: a store is owned by the dispatcher thread that applies its batches.
+class OrderStateStore {
+    static final OrderState[] STATES = {
+            OrderPlacedState.INSTANCE,
+            PreparingState.INSTANCE,
+            OutForDeliveryState.INSTANCE,
+            DeliveredState.INSTANCE,
+            CancelledState.INSTANCE
+    };
+
+    static final byte EMPTY = -1; // slot has no order yet
+    private static final byte[] NEXT = compile(true);
+    private static final byte[] CANCEL = compile(false);
+
+    private final byte[] states;
+    private final int[] counts = new int[STATES.length];
+    private OrderTransitionJournal journal;
+
+    public OrderStateStore(int capacity) {
+        this.states = new byte[capacity];
+        Arrays.fill(states, EMPTY);
+    }
+
+    private static byte[] compile(boolean next) {
+        byte[] table = new byte[STATES.length];
+        for (OrderState state : STATES) {
+            OrderState target = next ? state.next() : state.cancel();
+            table[state.getCode()] = target == null ? EMPTY : (byte) target.getCode();
+        }
+        return table;
+    }
+
+    // Every applied transition is appended to the journal; each batch is one group commit
+    public void attachJournal(OrderTransitionJournal journal) {
+        this.journal = journal;
+    }
+
+    // Registers a new order in ORDER_PLACED
+    public void place(int orderId) throws IOException {
+        if (states[orderId] != EMPTY) {
+            throw new IllegalStateException("Order " + orderId + " already placed");
+        }
+        int placed = OrderPlacedState.INSTANCE.getCode();
+        if (journal != null) {
+            journal.append(orderId, EMPTY, placed, System.currentTimeMillis());
+        }
+        states[orderId] = (byte) placed;
+        counts[placed]++;
+    }
+
+    // Puts an order straight into a state, used when replaying the journal
+    void restore(int orderId, int code) {
+        int from = states[orderId];
+        if (from != EMPTY) {
+            counts[from]--;
+        }
+        states[orderId] = (byte) code;
+        counts[code]++;
+    }
+
+    // Moves every order to its next state, returns how many moves were applied
+    public int advanceAll(int[] orderIds) throws IOException {
+        return advanceAll(orderIds, orderIds.length);
+    }
+
+    public int advanceAll(int[] orderIds, int length) throws IOException {
+        return applyAll(NEXT, orderIds, length);
+    }
+
+    // Cancels every order that can still be cancelled, returns how many were cancelled
+    public int cancelAll(int[] orderIds) throws IOException {
+        return cancelAll(orderIds, orderIds.length);
+    }
+
+    public int cancelAll(int[] orderIds, int length) throws IOException {
+        return applyAll(CANCEL, orderIds, length);
+    }
+
+    // Each transition is journaled before the store changes, so the store never holds a state the journal
+    // does not have; if an append fails, the orders before it are moved and journaled and the rest are untouched
+    private int applyAll(byte[] table, int[] orderIds, int length) throws IOException {
+        byte[] s = states;
+        int[] c = counts;
+        OrderTransitionJournal j = journal;
+        long now = j == null ? 0 : System.currentTimeMillis();
+        int applied = 0;
+        for (int i = 0; i < length; i++) {
+            int id = orderIds[i];
+            int from = s[id];
+            if (from == EMPTY) {
+                continue;
+            }
+            int to = table[from];
+            if (to == EMPTY) {
+                continue; // rejected, e.g. cancelling an order that is out for delivery
+            }
+            if (j != null) {
+                j.append(id, from, to, now);
+            }
+            s[id] = (byte) to;
+            c[from]--;
+            c[to]++;
+            applied++;
+        }
+        if (j != null) {
+            j.commit();
+        }
+        return applied;
+    }
+
+    // Current state of the order, null if the id was never placed
+    public OrderState stateOf(int orderId) {
+        int code = states[orderId];
+        return code == EMPTY ? null : STATES[code];
+    }
+
+    // Number of orders currently in the given state, maintained incrementally
+    public int count(OrderState state) {
+        return counts[state.getCode()];
+    }
+
+    public int capacity() {
+        return states.length;
+    }
+}
+
+// OrderTransitionJournal is an append-only file of fixed 16-byte records
+// (orderId, fromState, toState, timestamp) written through memory-mapped regions.
+// Records become durable in groups: commit() forces the dirty part of the mapping and only then
+// bumps the committed count in the header, so replay never sees a half-written group.
+class OrderTransitionJournal implements Closeable {
+    static final int RECORD_SIZE = 16;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x4F52444A; // "ORDJ"
+    private static final long REGION_RECORDS = 1 << 22; // 64 MB per mapped region
+    private static final long REGION_SIZE = REGION_RECORDS * RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int groupCommitRecords;
+    private MappedByteBuffer region;
+    private long regionIndex = -1;
+    private long written;   // records appended so far
+    private long committed; // records covered by the header count
+    private int dirtyFrom;  // first uncommitted byte in the current region
+
+    public OrderTransitionJournal(Path file, int groupCommitRecords) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.groupCommitRecords = groupCommitRecords;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(0) == 0) {
+            header.putInt(0, MAGIC);
+            header.putLong(8, 0);
+            header.force();
+        } else if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not an order journal: " + file);
+        }
+        this.committed = header.getLong(8);
+        this.written = committed;
+        mapRegionFor(written);
+    }
+
+    private void mapRegionFor(long record) throws IOException {
+        long index = record / REGION_RECORDS;
+        if (index != regionIndex) {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + index * REGION_SIZE, REGION_SIZE);
+            regionIndex = index;
+            dirtyFrom = (int) ((record % REGION_RECORDS) * RECORD_SIZE);
+        }
+    }
+
+    public void append(int orderId, int fromState, int toState, long timestamp) throws IOException {
+        if (written / REGION_RECORDS != regionIndex) {
+            flushRegion();
+            mapRegionFor(written);
+        }
+        int offset = (int) ((written % REGION_RECORDS) * RECORD_SIZE);
+        region.putInt(offset, orderId);
+        region.put(offset + 4, (byte) fromState);
+        region.put(offset + 5, (byte) toState);
+        region.putLong(offset + 8, timestamp);
+        written++;
+        if (written - committed >= groupCommitRecords) {
+            commit();
+        }
+    }
+
+    // Makes every appended record durable with one force of the data and one of the header
+    public void commit() {
+        if (written == committed) {
+            return;
+        }
+        flushRegion();
+        header.putLong(8, written);
+        header.force();
+        committed = written;
+    }
+
+    private void flushRegion() {
+        int end = (int) ((written - regionIndex * REGION_RECORDS) * RECORD_SIZE);
+        if (end > dirtyFrom) {
+            region.force(dirtyFrom, end - dirtyFrom);
+            dirtyFrom = end;
+        }
+    }
+
+    public long committedRecords() {
+        return committed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+
+    // Rebuilds the store from a journal by scanning the mapped file sequentially.
+    // Only the last state of each order matters, so records are applied straight into the store.
+    public static long replay(Path file, OrderStateStore store) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (head.getInt(0) != MAGIC) {
+                throw new IOException("Not an order journal: " + file);
+            }
+            long records = head.getLong(8);
+            for (long start = 0; start < records; start += REGION_RECORDS) {
+                long count = Math.min(REGION_RECORDS, records - start);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * RECORD_SIZE, count * RECORD_SIZE);
+                int end = (int) (count * RECORD_SIZE);
+                for (int offset = 0; offset < end; offset += RECORD_SIZE) {
+                    int orderId = buf.getInt(offset);
+                    int toState = buf.get(offset + 5);
+                    if (orderId < 0 || orderId >= store.capacity() || toState < 0 || toState >= OrderStateStore.STATES.length) {
+                        throw new IOException("Corrupt record " + (start + offset / RECORD_SIZE) + " in " + file
+                                + ": order " + orderId + ", state " + toState);
+                    }
+                    store.restore(orderId, toState);
+                }
+            }
+            return records;
+        }
+    }
+}
+
+// Events that drive the table-driven state machine
+enum OrderEvent {
+    NEXT,
+    CANCEL,
+    RETURN
+}
+
+// Optional hooks attached to a single table transition
+interface TransitionGuard {
+    boolean allow(int fromState, int toState);
+}
+
+interface TransitionAction {
+    void onTransition(int fromState, int toState);
+}
+
+// TransitionTable compiles a state graph into a dense [state][event] array (flattened), so firing
+// an event is an array load instead of a virtual call whose cost grows with the number of
+// OrderState classes. States are declared by name; the first declared state is the initial one.
+class TransitionTable {
+    private static final int EVENTS = OrderEvent.values().length;
+    private static final int NONE = -1;
+
+    private final String[] names;
+    private final int[] targets;
+    private final TransitionGuard[] guards;
+    private final TransitionAction[] actions;
+
+    private TransitionTable(String[] names, int[] targets, TransitionGuard[] guards, TransitionAction[] actions) {
+        this.names = names;
+        this.targets = targets;
+        this.guards = guards;
+        this.actions = actions;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // Compiles the graph already encoded in OrderState singletons (codes must be 0..n-1)
+    public static TransitionTable fromStates(OrderState... states) {
+        return builder().states(states).compile();
+    }
+
+    // Target state code for the event, or -1 when the state has no such transition
+    public int target(int state, OrderEvent event) {
+        return targets[state * EVENTS + event.ordinal()];
+    }
+
+    TransitionGuard guard(int state, OrderEvent event) {
+        return guards[state * EVENTS + event.ordinal()];
+    }
+
+    TransitionAction action(int state, OrderEvent event) {
+        return actions[state * EVENTS + event.ordinal()];
+    }
+
+    public int initialState() {
+        return 0;
+    }
+
+    public int stateCount() {
+        return names.length;
+    }
+
+    public String stateName(int state) {
+        return names[state];
+    }
+
+    static class Builder {
+        private static final class Edge {
+            final String from;
+            final OrderEvent event;
+            final String to;
+            final TransitionGuard guard;
+            final TransitionAction action;
+
+            Edge(String from, OrderEvent event, String to, TransitionGuard guard, TransitionAction action) {
+                this.from = from;
+                this.event = event;
+                this.to = to;
+                this.guard = guard;
+                this.action = action;
+            }
+        }
+
+        private final Map<String, Integer> codes = new LinkedHashMap<>();
+        private final List<Edge> transitions = new ArrayList<>();
+
+        public Builder state(String name) {
+            codes.putIfAbsent(name, codes.size());
+            return this;
+        }
+
+        // Imports the next/cancel edges of existing OrderState singletons
+        public Builder states(OrderState... states) {
+            for (OrderState state : states) {
+                if (state.getCode() != codes.size()) {
+                    throw new IllegalArgumentException("State codes must be dense and in order: " + state.getStateName());
+                }
+                state(state.getStateName());
+            }
+            for (OrderState state : states) {
+                if (state.next() != null) {
+                    on(state.getStateName(), OrderEvent.NEXT, state.next().getStateName());
+                }
+                if (state.cancel() != null) {
+                    on(state.getStateName(), OrderEvent.CANCEL, state.cancel().getStateName());
+                }
+            }
+            return this;
+        }
+
+        public Builder on(String from, OrderEvent event, String to) {
+            return on(from, event, to, null, null);
+        }
+
+        public Builder on(String from, OrderEvent event, String to, TransitionGuard guard, TransitionAction action) {
+            state(from);
+            state(to);
+            transitions.add(new Edge(from, event, to, guard, action));
+            return this;
+        }
+
+        public TransitionTable compile() {
+            int size = codes.size() * EVENTS;
+            int[] targets = new int[size];
+            Arrays.fill(targets, NONE);
+            TransitionGuard[] guards = new TransitionGuard[size];
+            TransitionAction[] actions = new TransitionAction[size];
+            for (Edge edge : transitions) {
+                int slot = codes.get(edge.from) * EVENTS + edge.event.ordinal();
+                if (targets[slot] != NONE) {
+                    throw new IllegalStateException("Duplicate transition " + edge.from + " on " + edge.event);
+                }
+                targets[slot] = codes.get(edge.to);
+                guards[slot] = edge.guard;
+                actions[slot] = edge.action;
+            }
+            return new TransitionTable(codes.keySet().toArray(new String[0]), targets, guards, actions);
+        }
+    }
+}
+
+// TableOrderContext has the same next()/cancel()/getCurrentState() surface as OrderContext but
+// is backed by a compiled TransitionTable and an int state updated with CAS. It is a separate
+// class, not a backend of OrderContext: OrderContext keeps OrderState objects (setState accepts
+// any implementation), so callers have to switch to TableOrderContext to use the table.
+class TableOrderContext {
+    private static final AtomicIntegerFieldUpdater<TableOrderContext> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(TableOrderContext.class, "currentState");
+
+    private final TransitionTable table;
+    private volatile int currentState;
+
+    public TableOrderContext(TransitionTable table) {
+        this.table = table;
+        this.currentState = table.initialState();
+    }
+
+    public TransitionResult next() {
+        return fire(OrderEvent.NEXT);
+    }
+
+    public TransitionResult cancel() {
+        return fire(OrderEvent.CANCEL);
+    }
+
+    public TransitionResult fire(OrderEvent event) {
+        while (true) {
+            int from = currentState;
+            int to = table.target(from, event);
+            if (to < 0) {
+                return TransitionResult.REJECTED;
+            }
+            TransitionGuard guard = table.guard(from, event);
+            if (guard != null && !guard.allow(from, to)) {
+                return TransitionResult.REJECTED;
+            }
+            if (STATE.compareAndSet(this, from, to)) {
+                TransitionAction action = table.action(from, event);
+                if (action != null) {
+                    action.onTransition(from, to);
+                }
+                return TransitionResult.APPLIED;
+            }
+        }
+    }
+
+    public String getCurrentState() {
+        return table.stateName(currentState);
+    }
+}
+
+// Synthetic states used only by DispatchBenchmark to build a 20-class graph: each one overrides
+// next() itself so the polymorphic call site really sees 20 receiver types.
+abstract class BenchState implements OrderState {
+    static final BenchState[] RING = new BenchState[15];
+    private final int code;
+
+    BenchState(int code) {
+        this.code = code;
+    }
+
+    static OrderState at(int index) {
+        return index < RING.length ? RING[index] : OrderPlacedState.INSTANCE;
+    }
+
+    public OrderState cancel() {
+        return CancelledState.INSTANCE;
+    }
+
+    public String getStateName() {
+        return "BENCH_" + code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    static {
+        BenchState[] s = {new B0(), new B1(), new B2(), new B3(), new B4(), new B5(), new B6(), new B7(),
+                new B8(), new B9(), new B10(), new B11(), new B12(), new B13(), new B14()};
+        System.arraycopy(s, 0, RING, 0, s.length);
+    }
+
+    static final class B0 extends BenchState { B0() { super(5); } public OrderState next() { return at(1); } }
+    static final class B1 extends BenchState { B1() { super(6); } public OrderState next() { return at(2); } }
+    static final class B2 extends BenchState { B2() { super(7); } public OrderState next() { return at(3); } }
+    static final class B3 extends BenchState { B3() { super(8); } public OrderState next() { return at(4); } }
+    static final class B4 extends BenchState { B4() { super(9); } public OrderState next() { return at(5); } }
+    static final class B5 extends BenchState { B5() { super(10); } public OrderState next() { return at(6); } }
+    static final class B6 extends BenchState { B6() { super(11); } public OrderState next() { return at(7); } }
+    static final class B7 extends BenchState { B7() { super(12); } public OrderState next() { return at(8); } }
+    static final class B8 extends BenchState { B8() { super(13); } public OrderState next() { return at(9); } }
+    static final class B9 extends BenchState { B9() { super(14); } public OrderState next() { return at(10); } }
+    static final class B10 extends BenchState { B10() { super(15); } public OrderState next() { return at(11); } }
+    static final class B11 extends BenchState { B11() { super(16); } public OrderState next() { return at(12); } }
+    static final class B12 extends BenchState { B12() { super(17); } public OrderState next() { return at(13); } }
+    static final class B13 extends BenchState { B13() { super(18); } public OrderState next() { return at(14); } }
+    static final class B14 extends BenchState { B14() { super(19); } public OrderState next() { return at(15); } }
+}
+
+// DispatchBenchmark compares virtual dispatch on OrderState.next() with the compiled table at
+// 1, 5 and 20 states. JMH is not part of this source tree, so this is a plain warm-up + measure
+// harness; run it with: java Behavioural_Design_Patter.StatePattern.DispatchBenchmark
+class DispatchBenchmark {
+    private static final int OPS = 20_000_000;
+
     public static void main(String[] args) {
+        List<OrderState> all = new ArrayList<>(Arrays.asList(OrderStateStore.STATES));
+        all.addAll(Arrays.asList(BenchState.RING));
+        for (int n : new int[]{1, 5, 20}) {
+            OrderState[] states = all.subList(0, n).toArray(new OrderState[0]);
+            TransitionTable table = TransitionTable.fromStates(states);
+            int[] codes = new int[states.length];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = states[i].getCode();
+            }
+            for (int warmup = 0; warmup < 5; warmup++) {
+                polymorphic(states);
+                table(table, codes);
+            }
+            long t0 = System.nanoTime();
+            long a = polymorphic(states);
+            long t1 = System.nanoTime();
+            long b = table(table, codes);
+            long t2 = System.nanoTime();
+            System.out.printf("%2d states: virtual %.2f ns/op, table %.2f ns/op (%d/%d)%n",
+                    n, (t1 - t0) / (double) OPS, (t2 - t1) / (double) OPS, a, b);
+        }
+    }
+
+    private static long polymorphic(OrderState[] states) {
+        long sink = 0;
+        for (int i = 0; i < OPS; i++) {
+            OrderState to = states[i % states.length].next();
+            sink += to == null ? -1 : to.getCode();
+        }
+        return sink;
+    }
+
+    private static long table(TransitionTable table, int[] codes) {
+        long sink = 0;
+        for (int i = 0; i < OPS; i++) {
+            int to = table.target(codes[i % codes.length], OrderEvent.NEXT);
+            sink += to < 0 ? -1 : to;
+        }
+        return sink;
+    }
+}
+
+// OrderTimeoutWheel tracks a per-order deadline (e.g. stuck in PREPARING or OUT_FOR_DELIVERY)
+// in a hierarchical timing wheel: 4 levels of 64 slots, each level 64x coarser than the one below.
+// Entries are intrusive doubly-linked lists over primitive arrays indexed by order id, so
+// schedule/cancel are O(1) and nothing is allocated per order. Due orders are collected and
+// applied to the OrderStateStore as one advanceAll/cancelAll batch per event.
+// Not thread-safe: driven by the same dispatcher thread that owns the store.
+class OrderTimeoutWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final int NIL = -1;
+
+    private final OrderStateStore store;
+    private final long tickMillis;
+    private final long startMillis;
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private final int[] next;
+    private final int[] prev;
+    private final int[] bucketOf;
+    private final long[] deadline;   // in ticks
+    private final byte[] event;      // OrderEvent ordinal to fire
+    private final byte[] expected;   // state the order must still be in when the deadline fires
+    private final int[] fireNext;
+    private final int[] fireCancel;
+    private int nextCount;
+    private int cancelCount;
+    private long currentTick;
+    private int pending;
+
+    public OrderTimeoutWheel(OrderStateStore store, long tickMillis, long startMillis) {
+        int capacity = store.capacity();
+        this.store = store;
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        this.bucketOf = new int[capacity];
+        this.deadline = new long[capacity];
+        this.event = new byte[capacity];
+        this.expected = new byte[capacity];
+        this.fireNext = new int[capacity];
+        this.fireCancel = new int[capacity];
+        Arrays.fill(heads, NIL);
+        Arrays.fill(bucketOf, NIL);
+    }
+
+    // Fires the event for the order after delayMillis unless it leaves its current state first.
+    // Rescheduling an order replaces its previous deadline.
+    public void schedule(int orderId, long delayMillis, OrderEvent onTimeout) {
+        if (onTimeout == OrderEvent.RETURN) {
+            throw new IllegalArgumentException("Timeouts can only advance or cancel an order");
+        }
+        OrderState state = store.stateOf(orderId);
+        if (state == null) {
+            throw new IllegalStateException("Order " + orderId + " is not placed");
+        }
+        cancel(orderId);
+        deadline[orderId] = currentTick + Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        event[orderId] = (byte) onTimeout.ordinal();
+        expected[orderId] = (byte) state.getCode();
+        insert(orderId);
+        pending++;
+    }
+
+    public boolean cancel(int orderId) {
+        if (bucketOf[orderId] == NIL) {
+            return false;
+        }
+        unlink(orderId);
+        pending--;
+        return true;
+    }
+
+    public int pending() {
+        return pending;
+    }
+
+    // Moves the wheel up to nowMillis and applies every due timeout, returns the applied count
+    public int advance(long nowMillis) throws IOException {
+        long targetTick = (nowMillis - startMillis) / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+                }
+            }
+            collect((int) (currentTick & (SLOTS - 1)));
+        }
+        int applied = 0;
+        if (nextCount > 0) {
+            applied += store.advanceAll(fireNext, nextCount);
+        }
+        if (cancelCount > 0) {
+            applied += store.cancelAll(fireCancel, cancelCount);
+        }
+        nextCount = 0;
+        cancelCount = 0;
+        return applied;
+    }
+
+    private void insert(int orderId) {
+        long due = deadline[orderId];
+        int level = 0;
+        while (level < LEVELS - 1 && (due >>> (SLOT_BITS * level)) - (currentTick >>> (SLOT_BITS * level)) >= SLOTS) {
+            level++;
+        }
+        int bucket = level * SLOTS + (int) ((due >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        int head = heads[bucket];
+        next[orderId] = head;
+        prev[orderId] = NIL;
+        if (head != NIL) {
+            prev[head] = orderId;
+        }
+        heads[bucket] = orderId;
+        bucketOf[orderId] = bucket;
+    }
+
+    private void unlink(int orderId) {
+        int bucket = bucketOf[orderId];
+        int p = prev[orderId];
+        int n = next[orderId];
+        if (p == NIL) {
+            heads[bucket] = n;
+        } else {
+            next[p] = n;
+        }
+        if (n != NIL) {
+            prev[n] = p;
+        }
+        bucketOf[orderId] = NIL;
+    }
+
+    // Re-files every entry of a coarse bucket into the finer levels relative to the current tick
+    private void cascade(int bucket) {
+        int id = heads[bucket];
+        heads[bucket] = NIL;
+        while (id != NIL) {
+            int following = next[id];
+            insert(id);
+            id = following;
+        }
+    }
+
+    private void collect(int bucket) {
+        int id = heads[bucket];
+        heads[bucket] = NIL;
+        while (id != NIL) {
+            int following = next[id];
+            bucketOf[id] = NIL;
+            pending--;
+            OrderState state = store.stateOf(id);
+            if (state != null && state.getCode() == expected[id]) {
+                if (event[id] == OrderEvent.NEXT.ordinal()) {
+                    fireNext[nextCount++] = id;
+                } else {
+                    fireCancel[cancelCount++] = id;
+                }
+            }
+            id = following;
+        }
+    }
+}
+
+public class Main {
+    public static void main(String[] args) throws InterruptedException, IOException {
         OrderContext order = new OrderContext();
 
         // Display initial state
         System.out.println("Current State: " + order.getCurrentState());
 
         // Moving through states
-        order.next();  // ORDER_PLACED -> PREPARING
-        order.next();  // PREPARING -> OUT_FOR_DELIVERY
-        order.cancel(); // Should fail, as order is out for delivery
-        order.next();  // OUT_FOR_DELIVERY -> DELIVERED
-        order.cancel(); // Should fail, as order is delivered
+        System.out.println("next   -> " + order.next());   // ORDER_PLACED -> PREPARING
+        System.out.println("next   -> " + order.next());   // PREPARING -> OUT_FOR_DELIVERY
+        System.out.println("cancel -> " + order.cancel()); // Should fail, as order is out for delivery
+        System.out.println("next   -> " + order.next());   // OUT_FOR_DELIVERY -> DELIVERED
+        System.out.println("cancel -> " + order.cancel()); // Should fail, as order is delivered
 
         // Display final state
         System.out.println("Final State: " + order.getCurrentState());
+
+        // Many threads racing on the same orders: every order still moves exactly three times
+        OrderContext[] orders = new OrderContext[100_000];
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new OrderContext();
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicLong applied = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                long local = 0;
+                for (OrderContext o : orders) {
+                    for (int step = 0; step < 4; step++) {
+                        if (o.next() == TransitionResult.APPLIED) {
+                            local++;
+                        }
+                    }
+                }
+                applied.addAndGet(local);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println("Concurrent transitions applied: " + applied.get() + " (expected " + (orders.length * 3L) + ")");
+
+        // Batch dispatch: one dispatcher moves whole batches through the columnar store
+        OrderStateStore store = new OrderStateStore(50_000);
+        int[] batch = new int[store.capacity()];
+        for (int id = 0; id < batch.length; id++) {
+            store.place(id);
+            batch[id] = id;
+        }
+        store.advanceAll(batch);                               // all -> PREPARING
+        store.cancelAll(Arrays.copyOfRange(batch, 0, 10_000)); // first 10k cancelled
+        store.advanceAll(batch);                               // the rest -> OUT_FOR_DELIVERY
+        System.out.println("Cancel while out for delivery applied: " + store.cancelAll(batch));
+        for (OrderState state : OrderStateStore.STATES) {
+            System.out.println(state.getStateName() + ": " + store.count(state));
+        }
+
+        // Journaled store: transitions survive a restart by replaying the mapped journal
+        Path journalFile = Files.createTempFile("orders", ".journal");
+        try (OrderTransitionJournal journal = new OrderTransitionJournal(journalFile, 4096)) {
+            OrderStateStore live = new OrderStateStore(batch.length);
+            live.attachJournal(journal);
+            for (int id : batch) {
+                live.place(id);
+            }
+            live.advanceAll(batch);
+            live.advanceAll(Arrays.copyOfRange(batch, 0, 20_000));
+        }
+        OrderStateStore recovered = new OrderStateStore(batch.length);
+        long replayed = OrderTransitionJournal.replay(journalFile, recovered);
+        System.out.println("Replayed " + replayed + " transitions, OUT_FOR_DELIVERY: "
+                + recovered.count(OutForDeliveryState.INSTANCE) + ", PREPARING: " + recovered.count(PreparingState.INSTANCE));
+        Files.deleteIfExists(journalFile);
+
+        // Table-driven backend: same lifecycle plus a guarded return flow, no new OrderState classes
+        TransitionTable returns = TransitionTable.builder()
+                .states(OrderStateStore.STATES)
+                .on("DELIVERED", OrderEvent.RETURN, "RETURN_REQUESTED", (from, to) -> true,
+                        (from, to) -> System.out.println("Return pickup scheduled"))
+                .on("RETURN_REQUESTED", OrderEvent.NEXT, "RETURNED")
+                .compile();
+        TableOrderContext tableOrder = new TableOrderContext(returns);
+        tableOrder.next();
+        tableOrder.next();
+        System.out.println("table cancel -> " + tableOrder.cancel());
+        tableOrder.next();
+        System.out.println("table return -> " + tableOrder.fire(OrderEvent.RETURN));
+        tableOrder.next();
+        System.out.println("Table Final State: " + tableOrder.getCurrentState());
+
+        // Deadlines: orders stuck in PREPARING are auto-cancelled by the timing wheel
+        OrderStateStore timed = new OrderStateStore(100_000);
+        OrderTimeoutWheel wheel = new OrderTimeoutWheel(timed, 10, 0);
+        int[] all = new int[timed.capacity()];
+        for (int id = 0; id < all.length; id++) {
+            timed.place(id);
+            all[id] = id;
+        }
+        timed.advanceAll(all); // everyone PREPARING
+        for (int id : all) {
+            wheel.schedule(id, 15 * 60_000 + id, OrderEvent.CANCEL); // ~15 minutes
+        }
+        int[] onTime = Arrays.copyOfRange(all, 0, 60_000);
+        timed.advanceAll(onTime); // these leave PREPARING in time, so their timeout is ignored
+        int fired = 0;
+        for (long now = 0; now <= 20 * 60_000; now += 1_000) {
+            fired += wheel.advance(now);
+        }
+        System.out.println("Auto-cancelled " + fired + " stuck orders, pending timeouts: " + wheel.pending()
+                + ", CANCELLED: " + timed.count(CancelledState.INSTANCE));
     }
 }
@@ -1,5 +1,16 @@
 package Behavioural_Design_Patter.TemplateMethod;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * Understanding the Problem
@@ -85,9 +96,10 @@ class SMSNotification1{
 
 abstract class NotificationSender{
     public final void send(String to, String rawMessage){
-        //common logic
-        rateLimitCheck(to);
-        validateRecipient(to);
+        //common logic; an invalid recipient is refused before it can use up a rate limit token
+        if(!validateRecipient(to) || !rateLimitCheck(to)){
+            return;
+        }
         String formatted = formatMessage(rawMessage);
         preSendAuditLog(to, formatted);
 
@@ -98,19 +110,52 @@ abstract class NotificationSender{
         //Optional Hook 
     }
 
-    private void rateLimitCheck(String to){
-        System.out.println("Checking rate limit for: " + to);
+    private TokenBucketRateLimiter rateLimiter; // no throttling unless a limiter is set
+
+    private RecipientValidator recipientValidator = RecipientValidator.shared();
+    private AuditLogSink auditSink;
+
+    // Opt-in: senders are not throttled until a limiter is set
+    public void setRateLimiter(TokenBucketRateLimiter rateLimiter){
+        this.rateLimiter = rateLimiter;
+    }
+
+    public void setRecipientValidator(RecipientValidator recipientValidator){
+        this.recipientValidator = recipientValidator;
+    }
+
+    // When set, audit entries go to the asynchronous binary log instead of stdout
+    public void setAuditSink(AuditLogSink auditSink){
+        this.auditSink = auditSink;
     }
 
-    private void validateRecipient(String to){
-        System.out.println("validating recipient: " + to);
+    // The common steps are package-private (not private) so NotificationPipeline can run the
+    // very same steps one stage at a time; subclasses still cannot override them.
+    final boolean rateLimitCheck(String to){
+        if(rateLimiter == null || rateLimiter.tryAcquire(to)){
+            return true;
+        }
+        System.out.println("Rate limit exceeded for: " + to);
+        return false;
     }
 
-    private String formatMessage(String message){
+    final boolean validateRecipient(String to){
+        if(recipientValidator.isValid(to)){
+            return true;
+        }
+        System.out.println("Invalid recipient: " + to);
+        return false;
+    }
+
+    final String formatMessage(String message){
         return message.trim();
     }
 
-    private void preSendAuditLog(String to, String formatted){
+    final void preSendAuditLog(String to, String formatted){
+        if(auditSink != null){
+            auditSink.record(to, formatted);
+            return;
+        }
         System.out.println("Loggin before send: " + formatted + " to " + to);
     }
 
@@ -128,9 +173,11 @@ abstract class NotificationSender{
 }
 
 class EmailNotification extends NotificationSender{
+    static final MessageTemplate BODY = MessageTemplate.compile("<html><body><p>{message}</p></body></html>");
+
     @Override
     protected String composeMessage(String formattedMessage){
-        return "<html><body><p>" + formattedMessage + "</p></body></html>";
+        return BODY.render(formattedMessage);
     }
 
     @Override
@@ -140,9 +187,11 @@ class EmailNotification extends NotificationSender{
 }
 
 class SMSNotification extends NotificationSender{
+    static final MessageTemplate BODY = MessageTemplate.compile("[SMS] {message}");
+
     @Override
     protected String composeMessage(String formattedMessage) {
-        return "[SMS] " + formattedMessage;
+        return BODY.render(formattedMessage);
     }
 
     // Implement SMS sending logic
@@ -157,8 +206,998 @@ class SMSNotification extends NotificationSender{
     }
 }
 
+/*
+ * Message templates
+
+ MessageTemplate parses a template such as "<html><body><p>{message}</p></body></html>" once into
+ literal segments and placeholder slots. Rendering appends the segments into a StringBuilder that is
+ reused per thread, and renderUtf8 encodes straight into a reused per-thread ByteBuffer for transports
+ that take bytes, so the only per-message allocation left is the String the composeMessage hook returns.
+*/
+
+class MessageTemplate{
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    // Lone surrogates become '?', the same as String.getBytes, instead of cutting the message short
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<ByteBuffer[]> BYTES = ThreadLocal.withInitial(() -> new ByteBuffer[]{ByteBuffer.allocate(1024)});
+
+    private final String[] literals;     // literals[i] comes before placeholder i, the last one ends the template
+    private final int[] placeholders;    // index into names for each placeholder occurrence
+    private final String[] names;
+    private final int literalLength;
+
+    private MessageTemplate(String[] literals, int[] placeholders, String[] names){
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.names = names;
+        int length = 0;
+        for(String literal : literals){
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    // Placeholders are written {name}; a name may appear more than once
+    public static MessageTemplate compile(String template){
+        List<String> literals = new ArrayList<>();
+        List<Integer> placeholders = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int from = 0;
+        while(true){
+            int open = template.indexOf('{', from);
+            int close = open < 0 ? -1 : template.indexOf('}', open);
+            if(close < 0){
+                literals.add(template.substring(from));
+                break;
+            }
+            literals.add(template.substring(from, open));
+            String name = template.substring(open + 1, close);
+            if(!names.contains(name)){
+                names.add(name);
+            }
+            placeholders.add(names.indexOf(name));
+            from = close + 1;
+        }
+        int[] slots = new int[placeholders.size()];
+        for(int i = 0; i < slots.length; i++){
+            slots[i] = placeholders.get(i);
+        }
+        return new MessageTemplate(literals.toArray(new String[0]), slots, names.toArray(new String[0]));
+    }
+
+    public List<String> placeholderNames(){
+        return Arrays.asList(names);
+    }
+
+    // Appends the template with values given in placeholderNames() order
+    public StringBuilder appendTo(StringBuilder out, CharSequence... values){
+        for(int i = 0; i < placeholders.length; i++){
+            out.append(literals[i]).append(values[placeholders[i]]);
+        }
+        return out.append(literals[placeholders.length]);
+    }
+
+    // Fast path for templates with one placeholder name (it may occur several times): no varargs
+    // array, value taken from a range
+    public StringBuilder appendTo(StringBuilder out, CharSequence value, int start, int end){
+        if(names.length > 1){
+            throw new IllegalArgumentException("Template has " + names.length + " placeholders " + placeholderNames() + ", pass one value for each");
+        }
+        out.ensureCapacity(out.length() + literalLength + (end - start) * placeholders.length);
+        for(int i = 0; i < placeholders.length; i++){
+            out.append(literals[i]).append(value, start, end);
+        }
+        return out.append(literals[placeholders.length]);
+    }
+
+    public String render(CharSequence value){
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        return appendTo(sb, value, 0, value.length()).toString();
+    }
+
+    // UTF-8 bytes of the rendered template in a per-thread buffer, valid until the next call on this thread
+    public ByteBuffer renderUtf8(CharSequence value){
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        return encode(appendTo(sb, value, 0, value.length()));
+    }
+
+    static ByteBuffer encode(CharSequence chars){
+        CharsetEncoder encoder = ENCODER.get();
+        ByteBuffer[] holder = BYTES.get();
+        int needed = (int) (chars.length() * (double) encoder.maxBytesPerChar());
+        if(holder[0].capacity() < needed){
+            holder[0] = ByteBuffer.allocate(Integer.highestOneBit(needed) << 1);
+        }
+        while(true){
+            ByteBuffer out = holder[0];
+            out.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(chars), out, true);
+            if(!result.isOverflow()){
+                result = encoder.flush(out);
+            }
+            if(result.isOverflow()){
+                holder[0] = ByteBuffer.allocate(out.capacity() * 2);
+                continue;
+            }
+            if(result.isError()){
+                throw new IllegalArgumentException("Cannot encode message as UTF-8: " + result);
+            }
+            out.flip();
+            return out;
+        }
+    }
+}
+
+/*
+ * Recipient validation
+
+ RecipientValidator checks email addresses and E.164 phone numbers with hand-written scanners over the
+ CharSequence (no regex, no allocation) and remembers verdicts in a bounded cache, because the same
+ recipients come back in every campaign. The cache is split into segments, each an access-ordered
+ LinkedHashMap with its own lock, a size cap (least recently used entry goes first) and a TTL.
+ validateAll checks a whole list in parallel on a fork-join pool.
+*/
+
+class RecipientValidator{
+    private static final RecipientValidator SHARED = new RecipientValidator(1 << 20, TimeUnit.HOURS.toMillis(1), ForkJoinPool.commonPool());
+    private static final int SEGMENTS = 32;
+
+    private static final class Verdict{
+        final boolean valid;
+        final long expiresAt;
+
+        Verdict(boolean valid, long expiresAt){
+            this.valid = valid;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final List<Map<String, Verdict>> segments = new ArrayList<>(SEGMENTS);
+    private final long ttlNanos;
+    private final ForkJoinPool pool;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RecipientValidator(int maxEntries, long ttlMillis, ForkJoinPool pool){
+        int perSegment = Math.max(1, maxEntries / SEGMENTS);
+        for(int i = 0; i < SEGMENTS; i++){
+            segments.add(new LinkedHashMap<String, Verdict>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest){
+                    return size() > perSegment;
+                }
+            });
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.pool = pool;
+    }
+
+    public static RecipientValidator shared(){
+        return SHARED;
+    }
+
+    // Addresses containing '@' are checked as email, everything else as a phone number
+    public boolean isValid(String recipient){
+        Map<String, Verdict> segment = segments.get((recipient.hashCode() & 0x7fffffff) % SEGMENTS);
+        long now = System.nanoTime();
+        synchronized(segment){
+            Verdict verdict = segment.get(recipient);
+            if(verdict != null && now - verdict.expiresAt < 0){
+                hits.increment();
+                return verdict.valid;
+            }
+        }
+        misses.increment();
+        boolean valid = check(recipient);
+        synchronized(segment){
+            segment.put(recipient, new Verdict(valid, now + ttlNanos));
+        }
+        return valid;
+    }
+
+    // Validates every recipient in parallel; result[i] is the verdict for recipients.get(i)
+    public boolean[] validateAll(List<String> recipients){
+        boolean[] result = new boolean[recipients.size()];
+        pool.submit(() -> java.util.stream.IntStream.range(0, result.length).parallel()
+                .forEach(i -> result[i] = isValid(recipients.get(i)))).join();
+        return result;
+    }
+
+    public long cacheHits(){
+        return hits.sum();
+    }
+
+    public long cacheMisses(){
+        return misses.sum();
+    }
+
+    static boolean check(CharSequence recipient){
+        for(int i = 0; i < recipient.length(); i++){
+            if(recipient.charAt(i) == '@'){
+                return isEmail(recipient);
+            }
+        }
+        return isPhone(recipient);
+    }
+
+    // local@domain.tld: dot-atom local part up to 64 chars, LDH labels up to 63 chars, alphabetic TLD
+    static boolean isEmail(CharSequence s){
+        int length = s.length();
+        if(length < 6 || length > 254){
+            return false;
+        }
+        int at = -1;
+        for(int i = 0; i < length; i++){
+            if(s.charAt(i) == '@'){
+                if(at >= 0){
+                    return false;
+                }
+                at = i;
+            }
+        }
+        if(at < 1 || at > 64){
+            return false;
+        }
+        char previous = '.';
+        for(int i = 0; i < at; i++){
+            char c = s.charAt(i);
+            if(c == '.'){
+                if(previous == '.'){
+                    return false; // leading or double dot
+                }
+            }else if(!isAlphaNumeric(c) && "!#$%&'*+/=?^_`{|}~-".indexOf(c) < 0){
+                return false;
+            }
+            previous = c;
+        }
+        if(previous == '.'){
+            return false;
+        }
+        int labelStart = at + 1;
+        int tldStart = labelStart;
+        int labels = 0;
+        for(int i = at + 1; i <= length; i++){
+            if(i == length || s.charAt(i) == '.'){
+                int labelLength = i - labelStart;
+                if(labelLength < 1 || labelLength > 63 || s.charAt(labelStart) == '-' || s.charAt(i - 1) == '-'){
+                    return false;
+                }
+                labels++;
+                tldStart = labelStart;
+                labelStart = i + 1;
+            }else if(!isAlphaNumeric(s.charAt(i)) && s.charAt(i) != '-'){
+                return false;
+            }
+        }
+        if(labels < 2 || length - tldStart < 2){
+            return false;
+        }
+        for(int i = tldStart; i < length; i++){
+            char c = s.charAt(i);
+            if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // E.164: optional '+', then 7 to 15 digits without a leading zero
+    static boolean isPhone(CharSequence s){
+        int start = s.length() > 0 && s.charAt(0) == '+' ? 1 : 0;
+        int digits = s.length() - start;
+        if(digits < 7 || digits > 15 || s.charAt(start) == '0'){
+            return false;
+        }
+        for(int i = start; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < '0' || c > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlphaNumeric(char c){
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
+
+/*
+ * Rate limiting
+
+ TokenBucketRateLimiter gives every recipient (and the whole sender) a token bucket. A bucket is a
+ single long packing its token count and last refill time, so taking a token is one CAS and refill is
+ computed lazily from System.nanoTime() when the bucket is touched. Recipient buckets live in a fixed
+ table of hashed slots: a recipient probes a small stripe of slots, and a slot idle long enough to have
+ refilled completely is reclaimed for a new recipient, which keeps memory bounded for any number of
+ distinct recipients. Only idle slots are reclaimed, so a throttled recipient never gets a fresh bucket;
+ when every slot of a stripe is active a new recipient is refused and counted in overflows(), which means
+ the table is too small for the number of recipients active at once. Senders are not limited unless a
+ limiter is set on them with setRateLimiter.
+*/
+
+class TokenBucketRateLimiter{
+    private static final int TOKEN_BITS = 24;
+    private static final long ONE_TOKEN = 256; // tokens are fixed point with 8 fractional bits
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TIME_MASK = (1L << (64 - TOKEN_BITS)) - 1; // micros, wraps after ~12 days
+    private static final int PROBE = 4;
+    private static final long EMPTY = 0;
+    private static final long CLAIMING = 1; // key while a new recipient's state is being written
+    private static final int TAKEN = 0;
+    private static final int THROTTLED = 1;
+    private static final int LOST = 2;      // the slot was reclaimed for another recipient meanwhile
+
+    // Refill parameters of one kind of bucket
+    private static final class Spec{
+        final long capacity;   // fixed point
+        final long perSecond;  // whole tokens per second
+        final long fullRefillMicros;
+
+        Spec(long burst, long perSecond){
+            if(burst <= 0 || burst * ONE_TOKEN > TOKEN_MASK || perSecond <= 0){
+                throw new IllegalArgumentException("burst must be 1.." + (TOKEN_MASK / ONE_TOKEN) + " and rate positive");
+            }
+            this.capacity = burst * ONE_TOKEN;
+            this.perSecond = perSecond;
+            this.fullRefillMicros = capacity * 1_000_000 / (perSecond * ONE_TOKEN) + 1;
+        }
+
+        // New packed state after taking one token, or -1 if the bucket is empty
+        long take(long state, long now){
+            long tokens = state & TOKEN_MASK;
+            long last = state >>> TOKEN_BITS;
+            long elapsed = (now - last) & TIME_MASK;
+            if(elapsed >= fullRefillMicros){
+                tokens = capacity;
+                last = now;
+            }else{
+                long gained = elapsed * perSecond * ONE_TOKEN / 1_000_000;
+                if(tokens + gained >= capacity){
+                    tokens = capacity;
+                    last = now;
+                }else if(gained > 0){
+                    tokens += gained;
+                    last = (last + gained * 1_000_000 / (perSecond * ONE_TOKEN)) & TIME_MASK; // keep the fraction
+                }
+            }
+            if(tokens < ONE_TOKEN){
+                return -1;
+            }
+            return pack(tokens - ONE_TOKEN, last);
+        }
+
+        boolean idle(long state, long now){
+            return ((now - (state >>> TOKEN_BITS)) & TIME_MASK) >= fullRefillMicros;
+        }
+    }
+
+    private final Spec recipient;
+    private final Spec global;
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+    private final AtomicLong globalState;
+    private final LongAdder overflows = new LongAdder();
+    private final int mask;
+    private final long origin = System.nanoTime();
+
+    // slots is rounded up to a power of two; burst/perSecond apply per recipient and to the total
+    public TokenBucketRateLimiter(int slots, long recipientBurst, long recipientPerSecond, long globalBurst, long globalPerSecond){
+        int size = Integer.highestOneBit(Math.max(PROBE, slots - 1) << 1);
+        this.recipient = new Spec(recipientBurst, recipientPerSecond);
+        this.global = new Spec(globalBurst, globalPerSecond);
+        this.keys = new AtomicLongArray(size);
+        this.states = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.globalState = new AtomicLong(pack(global.capacity, now()));
+    }
+
+    public boolean tryAcquire(String to){
+        long now = now();
+        int slot = takeRecipient(hash(to), now);
+        if(slot < 0){
+            return false;
+        }
+        if(takeGlobal(now)){
+            return true;
+        }
+        refund(slot);
+        return false;
+    }
+
+    // Recipients refused because their whole stripe was in active use
+    public long overflows(){
+        return overflows.sum();
+    }
+
+    private boolean takeGlobal(long now){
+        while(true){
+            long state = globalState.get();
+            long next = global.take(state, now);
+            if(next < 0){
+                return false;
+            }
+            if(globalState.compareAndSet(state, next)){
+                return true;
+            }
+        }
+    }
+
+    // Slot the token was taken from, or -1 when the recipient is throttled or no slot is free
+    private int takeRecipient(long key, long now){
+        int base = (int) (key ^ (key >>> 32)) & mask & ~(PROBE - 1);
+        probe:
+        while(true){
+            int victim = -1;
+            long victimKey = 0;
+            long victimState = 0;
+            boolean claiming = false;
+            for(int i = 0; i < PROBE; i++){
+                int slot = base + i;
+                long k = keys.get(slot);
+                if(k == key){
+                    int taken = takeSlot(slot, key, now);
+                    if(taken == LOST){
+                        continue probe;
+                    }
+                    return taken == TAKEN ? slot : -1;
+                }
+                if(k == CLAIMING){
+                    claiming = true;
+                }else if(victim < 0){
+                    long state = states.get(slot);
+                    if(k == EMPTY || recipient.idle(state, now)){
+                        victim = slot;
+                        victimKey = k;
+                        victimState = state;
+                    }
+                }
+            }
+            if(claiming){
+                // another thread is installing a recipient here, possibly this one: wait for its key
+                Thread.onSpinWait();
+                continue;
+            }
+            if(victim < 0){
+                overflows.increment();
+                return -1;
+            }
+            // The key is published only after the new state, so nobody takes from a half-installed slot. The
+            // state is replaced only if it is still the idle one we saw: if the old recipient took a token in
+            // between, the slot is in use again and goes back to it.
+            if(keys.compareAndSet(victim, victimKey, CLAIMING)){
+                if(states.compareAndSet(victim, victimState, pack(recipient.capacity - ONE_TOKEN, now))){
+                    keys.set(victim, key);
+                    return victim;
+                }
+                keys.set(victim, victimKey);
+            }
+        }
+    }
+
+    // A token taken while the slot was being reclaimed may have come from either owner's bucket, so it is
+    // given back to whoever holds the slot now and the caller probes again
+    private int takeSlot(int slot, long key, long now){
+        while(true){
+            long state = states.get(slot);
+            if(keys.get(slot) != key){
+                return LOST;
+            }
+            long next = recipient.take(state, now);
+            if(next < 0){
+                return THROTTLED;
+            }
+            if(states.compareAndSet(slot, state, next)){
+                if(keys.get(slot) == key){
+                    return TAKEN;
+                }
+                refund(slot);
+                return LOST;
+            }
+        }
+    }
+
+    // Gives back a recipient token when the global bucket refused the send
+    private void refund(int slot){
+        while(true){
+            long state = states.get(slot);
+            long tokens = Math.min(recipient.capacity, (state & TOKEN_MASK) + ONE_TOKEN);
+            if(states.compareAndSet(slot, state, (state & ~TOKEN_MASK) | tokens)){
+                return;
+            }
+        }
+    }
+
+    private long now(){
+        return ((System.nanoTime() - origin) / 1_000) & TIME_MASK;
+    }
+
+    private static long pack(long tokens, long micros){
+        return (micros << TOKEN_BITS) | tokens;
+    }
+
+    // 64-bit FNV-1a over the chars, never EMPTY or CLAIMING so those can mark slots
+    private static long hash(String s){
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < s.length(); i++){
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY || h == CLAIMING ? 2 : h;
+    }
+}
+
+/*
+ * Audit log
+
+ AuditLogSink takes preSendAuditLog off the send path. Callers claim a slot in a preallocated ring with
+ one CAS and write a fixed 256-byte record (timestamp, recipient, message as UTF-8, truncated to fit).
+ A background writer drains published slots in batches to the current log file, rotating files by
+ size and forcing them to disk according to the fsync policy. When the ring is full the record is
+ dropped and counted instead of blocking the sender. A sink opened on an existing directory continues
+ after the highest numbered file and never overwrites one. AuditLogReader reads the files back.
+*/
+
+class AuditLogSink implements AutoCloseable{
+    enum FsyncPolicy { NEVER, EVERY_BATCH, INTERVAL }
+
+    static final int RECORD_SIZE = 256;
+    static final int RECIPIENT_OFFSET = 12;
+    static final int RECIPIENT_MAX = 60;
+    static final int MESSAGE_OFFSET = RECIPIENT_OFFSET + RECIPIENT_MAX;
+    static final int MESSAGE_MAX = RECORD_SIZE - MESSAGE_OFFSET;
+
+    // Set in tail by close(): no claim can succeed after it, so the writer knows the final tail
+    private static final long CLOSED = 1L << 62;
+
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final Thread writer;
+    private FileChannel file;
+    private int fileIndex;
+    private long fileBytes;
+    private long lastFsync = System.nanoTime();
+    private boolean unforced;
+    private IOException failure;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong batches = new AtomicLong();
+
+    // capacity is the number of records the ring holds (rounded up to a power of two)
+    public AuditLogSink(Path directory, int capacity, long maxFileBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException{
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        this.ring = ByteBuffer.allocateDirect(size * RECORD_SIZE);
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.directory = Files.createDirectories(directory);
+        this.maxFileBytes = Math.max(RECORD_SIZE, maxFileBytes);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.fileIndex = nextFileIndex(this.directory);
+        rotate();
+        this.writer = new Thread(this::drainLoop, "audit-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Never blocks: returns false (and counts a drop) when the writer has fallen a full ring behind or the
+    // sink is closing
+    public boolean record(String to, String message){
+        long seq;
+        do{
+            seq = tail.get();
+            if((seq & CLOSED) != 0 || seq - head > mask){
+                dropped.increment();
+                return false;
+            }
+        }while(!tail.compareAndSet(seq, seq + 1));
+
+        int base = (int) (seq & mask) * RECORD_SIZE;
+        ring.putLong(base, System.currentTimeMillis());
+        ring.putShort(base + 8, (short) putUtf8(to, base + RECIPIENT_OFFSET, RECIPIENT_MAX));
+        ring.putShort(base + 10, (short) putUtf8(message, base + MESSAGE_OFFSET, MESSAGE_MAX));
+        published.lazySet((int) (seq & mask), seq + 1);
+        recorded.increment();
+        return true;
+    }
+
+    // Encodes into the ring without allocating; stops at the last whole character that fits
+    private int putUtf8(String s, int offset, int max){
+        int n = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                if(n + 1 > max) break;
+                ring.put(offset + n++, (byte) c);
+            }else if(c < 0x800){
+                if(n + 2 > max) break;
+                ring.put(offset + n++, (byte) (0xC0 | (c >> 6)));
+                ring.put(offset + n++, (byte) (0x80 | (c & 0x3F)));
+            }else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                if(n + 4 > max) break;
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ring.put(offset + n++, (byte) (0xF0 | (cp >> 18)));
+                ring.put(offset + n++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                ring.put(offset + n++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                ring.put(offset + n++, (byte) (0x80 | (cp & 0x3F)));
+            }else{
+                if(n + 3 > max) break;
+                ring.put(offset + n++, (byte) (0xE0 | (c >> 12)));
+                ring.put(offset + n++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                ring.put(offset + n++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return n;
+    }
+
+    private void drainLoop(){
+        try{
+            while(true){
+                int written = drainBatch();
+                if(written == 0){
+                    long end = tail.get();
+                    if((end & CLOSED) != 0 && head == (end & ~CLOSED)){
+                        break;
+                    }
+                    if(unforced && fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos){
+                        force(); // the last batch before a quiet spell gets the same bound as the others
+                    }
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+            file.force(false);
+            file.close();
+        }catch(IOException e){
+            failure = e;
+        }
+    }
+
+    // Writes the longest run of published records that is contiguous in the ring
+    private int drainBatch() throws IOException{
+        long from = head;
+        long to = from;
+        int start = (int) (from & mask);
+        while(to - from <= mask && published.get((int) (to & mask)) == to + 1){
+            to++;
+            if(((int) (to & mask)) == 0){
+                break; // wrap: the rest goes in the next batch
+            }
+        }
+        int count = (int) (to - from);
+        if(count == 0){
+            return 0;
+        }
+        long bytes = (long) count * RECORD_SIZE;
+        if(fileBytes + bytes > maxFileBytes && fileBytes > 0){
+            rotate();
+        }
+        ByteBuffer view = ring.duplicate();
+        view.limit(start * RECORD_SIZE + (int) bytes).position(start * RECORD_SIZE);
+        while(view.hasRemaining()){
+            file.write(view);
+        }
+        fileBytes += bytes;
+        head = to;
+        batches.incrementAndGet();
+        unforced = true;
+        if(fsyncPolicy == FsyncPolicy.EVERY_BATCH
+                || (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos)){
+            force();
+        }
+        return count;
+    }
+
+    private void force() throws IOException{
+        file.force(false);
+        lastFsync = System.nanoTime();
+        unforced = false;
+    }
+
+    private void rotate() throws IOException{
+        if(file != null){
+            file.force(false);
+            file.close();
+        }
+        Path next = directory.resolve(String.format("audit-%06d.log", fileIndex++));
+        file = FileChannel.open(next, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+        unforced = false;
+    }
+
+    // One past the highest audit file already in the directory
+    private static int nextFileIndex(Path directory) throws IOException{
+        int next = 0;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audit-*.log")){
+            for(Path path : stream){
+                String name = path.getFileName().toString();
+                try{
+                    next = Math.max(next, Integer.parseInt(name.substring("audit-".length(), name.length() - ".log".length())) + 1);
+                }catch(NumberFormatException e){
+                    // not one of ours
+                }
+            }
+        }
+        return next;
+    }
+
+    public long recordedCount(){
+        return recorded.sum();
+    }
+
+    // Backpressure metric: records rejected because the ring was full
+    public long droppedCount(){
+        return dropped.sum();
+    }
+
+    public long batchCount(){
+        return batches.get();
+    }
+
+    // Flushes everything recorded so far and stops the writer. Records racing with close are either
+    // claimed before it (and written) or rejected.
+    @Override
+    public void close() throws IOException, InterruptedException{
+        long t;
+        do{
+            t = tail.get();
+        }while((t & CLOSED) == 0 && !tail.compareAndSet(t, t | CLOSED));
+        writer.join();
+        if(failure != null){
+            throw failure;
+        }
+    }
+}
+
+class AuditLogReader{
+    static final class Entry{
+        final long timestamp;
+        final String recipient;
+        final String message;
+
+        Entry(long timestamp, String recipient, String message){
+            this.timestamp = timestamp;
+            this.recipient = recipient;
+            this.message = message;
+        }
+
+        @Override
+        public String toString(){
+            return timestamp + " " + recipient + " " + message;
+        }
+    }
+
+    // Replays every record of the audit files in a directory, oldest file first
+    public static long replay(Path directory, java.util.function.Consumer<Entry> consumer) throws IOException{
+        List<Path> files = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audit-*.log")){
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        long count = 0;
+        byte[] record = new byte[AuditLogSink.RECORD_SIZE];
+        for(Path path : files){
+            try(InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)){
+                while(in.readNBytes(record, 0, record.length) == record.length){
+                    ByteBuffer buf = ByteBuffer.wrap(record);
+                    String recipient = new String(record, AuditLogSink.RECIPIENT_OFFSET, buf.getShort(8), StandardCharsets.UTF_8);
+                    String message = new String(record, AuditLogSink.MESSAGE_OFFSET, buf.getShort(10), StandardCharsets.UTF_8);
+                    consumer.accept(new Entry(buf.getLong(0), recipient, message));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Usage: java Behavioural_Design_Patter.TemplateMethod.AuditLogReader <audit-directory>
+    public static void main(String[] args) throws IOException{
+        long count = replay(Paths.get(args[0]), System.out::println);
+        System.out.println(count + " audit records");
+    }
+}
+
+/*
+ * Pipelined sending
+
+ send() runs every step on the caller thread, so a large campaign is as slow as the sum of all steps.
+ NotificationPipeline runs the same template steps as stages connected by bounded queues. Each stage
+ has its own number of worker threads and messages move between stages in batches, so the slowest
+ step can be given more threads instead of serializing the whole campaign behind it.
+*/
+
+class NotificationPipeline implements AutoCloseable{
+    enum Stage { CHECK, FORMAT, COMPOSE, SEND }
+
+    // One message travelling through the stages
+    static final class Job{
+        final NotificationSender sender;
+        final String to;
+        final String rawMessage;
+        String formatted;
+        String composed;
+        boolean failed;
+
+        Job(NotificationSender sender, String to, String rawMessage){
+            this.sender = sender;
+            this.to = to;
+            this.rawMessage = rawMessage;
+        }
+    }
+
+    private static final List<Job> END = Collections.emptyList();
+
+    private final int batchSize;
+    private final int queueCapacity;
+    private final int[] parallelism = {1, 1, 1, 1};
+    private final List<BlockingQueue<List<Job>>> queues = new ArrayList<>();
+    private final AtomicInteger[] finishedWorkers = new AtomicInteger[Stage.values().length];
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private List<Job> current;
+    private boolean started;
+
+    public NotificationPipeline(int batchSize, int queueCapacity){
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.current = new ArrayList<>(batchSize);
+    }
+
+    public NotificationPipeline parallelism(Stage stage, int threads){
+        if(started){
+            throw new IllegalStateException("Pipeline already started");
+        }
+        parallelism[stage.ordinal()] = threads;
+        return this;
+    }
+
+    public NotificationPipeline start(){
+        started = true;
+        for(Stage stage : Stage.values()){
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            finishedWorkers[stage.ordinal()] = new AtomicInteger();
+        }
+        for(Stage stage : Stage.values()){
+            for(int i = 0; i < parallelism[stage.ordinal()]; i++){
+                Thread worker = new Thread(() -> runStage(stage), "notify-" + stage.name().toLowerCase() + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        return this;
+    }
+
+    // Same contract as sender.send(to, rawMessage), but queued; blocks only when the first stage is full
+    public synchronized void submit(NotificationSender sender, String to, String rawMessage) throws InterruptedException{
+        if(!started){
+            throw new IllegalStateException("Pipeline not started");
+        }
+        current.add(new Job(sender, to, rawMessage));
+        if(current.size() >= batchSize){
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws InterruptedException{
+        if(!current.isEmpty()){
+            queues.get(0).put(current);
+            current = new ArrayList<>(batchSize);
+        }
+    }
+
+    // Drains everything submitted so far and stops the workers
+    @Override
+    public void close() throws InterruptedException{
+        flush();
+        for(int i = 0; i < parallelism[0]; i++){
+            queues.get(0).put(END);
+        }
+        done.await();
+    }
+
+    public long sentCount(){
+        return sent.sum();
+    }
+
+    public long failedCount(){
+        return failed.sum();
+    }
+
+    public long throttledCount(){
+        return throttled.sum();
+    }
+
+    public long invalidCount(){
+        return invalid.sum();
+    }
+
+    private void runStage(Stage stage){
+        int index = stage.ordinal();
+        BlockingQueue<List<Job>> input = queues.get(index);
+        BlockingQueue<List<Job>> output = index + 1 < queues.size() ? queues.get(index + 1) : null;
+        try{
+            while(true){
+                List<Job> batch = input.take();
+                if(batch == END){
+                    // the last worker of this stage to finish tells the next stage to finish
+                    if(finishedWorkers[index].incrementAndGet() == parallelism[index]){
+                        if(output == null){
+                            done.countDown();
+                        }else{
+                            for(int i = 0; i < parallelism[index + 1]; i++){
+                                output.put(END);
+                            }
+                        }
+                    }
+                    return;
+                }
+                for(Job job : batch){
+                    if(job.failed){
+                        continue;
+                    }
+                    try{
+                        runStep(stage, job);
+                    }catch(RuntimeException e){
+                        job.failed = true;
+                        failed.increment();
+                    }
+                }
+                if(output != null){
+                    output.put(batch);
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runStep(Stage stage, Job job){
+        NotificationSender sender = job.sender;
+        switch(stage){
+            case CHECK:
+                if(!sender.validateRecipient(job.to)){
+                    job.failed = true;
+                    invalid.increment();
+                    return;
+                }
+                if(!sender.rateLimitCheck(job.to)){
+                    job.failed = true;
+                    throttled.increment();
+                }
+                break;
+            case FORMAT:
+                job.formatted = sender.formatMessage(job.rawMessage);
+                sender.preSendAuditLog(job.to, job.formatted);
+                break;
+            case COMPOSE:
+                job.composed = sender.composeMessage(job.formatted);
+                break;
+            case SEND:
+                sender.sendMessage(job.to, job.composed);
+                sent.increment();
+                break;
+        }
+    }
+}
+
 class Main{
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException {
         NotificationSender emailSender = new EmailNotification();
         emailSender.send("john@example.com" , " Welcome to The Company");
 
@@ -166,6 +1205,65 @@ class Main{
 
         NotificationSender smsSender = new SMSNotification();
         smsSender.send("9876543210", "Your OTP is: 7261");
+
+        System.out.println(" ");
+
+        // Campaign mode: the same steps, staged across threads
+        NotificationPipeline pipeline = new NotificationPipeline(2, 16)
+                .parallelism(NotificationPipeline.Stage.SEND, 2)
+                .start();
+        for(int i = 0; i < 4; i++){
+            pipeline.submit(emailSender, "user" + i + "@example.com", " Campaign message " + i);
+            pipeline.submit(smsSender, "98765000" + i, "Campaign message " + i);
+        }
+        pipeline.close();
+        System.out.println("Campaign sent: " + pipeline.sentCount() + ", failed: " + pipeline.failedCount()
+                + ", throttled: " + pipeline.throttledCount() + ", invalid: " + pipeline.invalidCount());
+
+        System.out.println(" ");
+
+        // Per-recipient limit: a burst of 3, then at most one message per second
+        NotificationSender strictSender = new SMSNotification();
+        strictSender.setRateLimiter(new TokenBucketRateLimiter(1024, 3, 1, 1_000, 1_000));
+        for(int i = 0; i < 5; i++){
+            strictSender.send("9000000000", "Reminder " + i);
+        }
+
+        System.out.println(" ");
+
+        // Audit entries written asynchronously to rotating binary files, then read back
+        Path auditDir = Files.createTempDirectory("audit");
+        AuditLogSink sink = new AuditLogSink(auditDir, 1024, 64 * AuditLogSink.RECORD_SIZE, AuditLogSink.FsyncPolicy.INTERVAL, 100);
+        NotificationSender audited = new EmailNotification();
+        audited.setAuditSink(sink);
+        audited.setRateLimiter(new TokenBucketRateLimiter(1024, 1_000, 1_000, 10_000, 10_000));
+        for(int i = 0; i < 3; i++){
+            audited.send("audit" + i + "@example.com", "Audited message " + i);
+        }
+        sink.close();
+        long replayed = AuditLogReader.replay(auditDir, entry -> System.out.println("Audit: " + entry.recipient + " -> " + entry.message));
+        System.out.println("Audit records replayed: " + replayed + ", dropped: " + sink.droppedCount());
+
+        // After a restart the sink continues the trail in a new file instead of overwriting the first one
+        AuditLogSink restarted = new AuditLogSink(auditDir, 1024, 64 * AuditLogSink.RECORD_SIZE, AuditLogSink.FsyncPolicy.INTERVAL, 100);
+        restarted.record("audit3@example.com", "After restart");
+        restarted.close();
+        System.out.println("Audit records after restart: " + AuditLogReader.replay(auditDir, entry -> {}));
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(auditDir)){
+            for(Path file : files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(auditDir);
+
+        // Byte-oriented transports take the rendered template as UTF-8 without an intermediate String
+        ByteBuffer payload = SMSNotification.BODY.renderUtf8("Ihr Paket ist unterwegs – danke!");
+        System.out.println("SMS payload: " + payload.remaining() + " UTF-8 bytes");
+
+        // Bulk validation before a campaign; verdicts are cached for the sends that follow
+        List<String> recipients = Arrays.asList("ok@example.com", "bad@@example.com", "+919876543210", "12ab", "a..b@example.com");
+        System.out.println("Bulk validation: " + Arrays.toString(RecipientValidator.shared().validateAll(recipients)));
+        emailSender.send("bad@@example.com", "Never sent");
     }
 }
 
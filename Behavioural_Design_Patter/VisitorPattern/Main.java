@@ -1,6 +1,10 @@
 
 package Behavioural_Design_Patter.VisitorPattern;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /*
 Understanding the Problem
@@ -48,92 +52,735 @@ The issues in the previous code can be effectively addressed using the Visitor P
 
 // ======= Element Interface ==========
 interface Item{
-    void accept(ItemVisitor visitor);
+    <R> R accept(ItemVisitor<R> visitor);
+
+    // Bumped by every setter, so cached visit results can tell the item changed
+    int version();
+
+    // Listeners hear about every change, so caches can recompute only what changed
+    void addChangeListener(ItemChangeListener listener);
+    void removeChangeListener(ItemChangeListener listener);
+}
+
+interface ItemChangeListener{
+    void itemChanged(Item item);
+}
+
+// Version and change listeners for the concrete elements. Their mutable fields are private and only change
+// through setters, which call changed(), so no change can bypass the version.
+abstract class VersionedItem implements Item{
+    private static final ItemChangeListener[] NONE = new ItemChangeListener[0];
+
+    private volatile int version;
+    private volatile ItemChangeListener[] listeners = NONE;
+
+    public int version(){
+        return version;
+    }
+
+    public synchronized void addChangeListener(ItemChangeListener listener){
+        ItemChangeListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    public synchronized void removeChangeListener(ItemChangeListener listener){
+        for(int i = 0; i < listeners.length; i++){
+            if(listeners[i] == listener){
+                ItemChangeListener[] shrunk = new ItemChangeListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, shrunk, 0, i);
+                System.arraycopy(listeners, i + 1, shrunk, i, shrunk.length - i);
+                listeners = shrunk;
+                return;
+            }
+        }
+    }
+
+    protected void changed(){
+        synchronized(this){
+            version++;
+        }
+        for(ItemChangeListener listener : listeners){
+            listener.itemChanged(this);
+        }
+    }
 }
 
 // ======= Concrete elements ===========
-class PhysicalProduct implements Item{
+class PhysicalProduct extends VersionedItem{
     String name;
-    double weight;
+    private double weight;
 
     public PhysicalProduct(String name, double weight){
         this.name = name;
         this.weight = weight;
     }
 
-    public void accept(ItemVisitor visitor){
-        visitor.visit(this);
+    public <R> R accept(ItemVisitor<R> visitor){
+        return visitor.visit(this);
+    }
+
+    public double getWeight(){
+        return weight;
+    }
+
+    public void setWeight(double weight){
+        this.weight = weight;
+        changed();
     }
 }
 
 // ======= Concrete elements ===========
-class DigitalProduct implements Item {
+class DigitalProduct extends VersionedItem {
     String name;
-    int downloadSizeInMB;
+    private int downloadSizeInMB;
 
     public DigitalProduct(String name, int downloadSizeInMB) {
         this.name = name;
         this.downloadSizeInMB = downloadSizeInMB;
     }
 
-    public void accept(ItemVisitor visitor) {
-        visitor.visit(this);
+    public <R> R accept(ItemVisitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+    public int getDownloadSizeInMB() {
+        return downloadSizeInMB;
+    }
+
+    public void setDownloadSizeInMB(int downloadSizeInMB) {
+        this.downloadSizeInMB = downloadSizeInMB;
+        changed();
     }
 }
 
 // ======= Concrete elements ===========
-class GiftCard implements Item {
+class GiftCard extends VersionedItem {
     String code;
-    double amount;
+    private double amount;
 
     public GiftCard(String code, double amount) {
         this.code = code;
         this.amount = amount;
     }
 
-    public void accept(ItemVisitor visitor) {
-        visitor.visit(this);
+    public <R> R accept(ItemVisitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(double amount) {
+        this.amount = amount;
+        changed();
     }
 }
 
 // ======== Visitor Interface ============
-interface ItemVisitor{
-    void visit(PhysicalProduct item);
-    void visit(DigitalProduct item);
-    void visit(GiftCard item);
+// Each visit returns a result for that item; combine merges two results, so a whole cart (or the partial
+// results of parallel workers) reduces to one. combine must be associative.
+interface ItemVisitor<R>{
+    R visit(PhysicalProduct item);
+    R visit(DigitalProduct item);
+    R visit(GiftCard item);
+    R combine(R left, R right);
+}
+
+// Invoice lines in cart order. Concatenation is O(1), so merging worker buffers does not copy lines.
+final class InvoiceLines{
+    private final String line;
+    private final InvoiceLines left;
+    private final InvoiceLines right;
+    final int size;
+
+    private InvoiceLines(String line, InvoiceLines left, InvoiceLines right, int size){
+        this.line = line;
+        this.left = left;
+        this.right = right;
+        this.size = size;
+    }
+
+    static InvoiceLines of(String line){
+        return new InvoiceLines(line, null, null, 1);
+    }
+
+    static InvoiceLines concat(InvoiceLines left, InvoiceLines right){
+        return new InvoiceLines(null, left, right, left.size + right.size);
+    }
+
+    // Iterative, since a long left fold builds a deep tree
+    public void forEach(Consumer<String> action){
+        Deque<InvoiceLines> stack = new ArrayDeque<>();
+        stack.push(this);
+        while(!stack.isEmpty()){
+            InvoiceLines node = stack.pop();
+            if(node.line != null){
+                action.accept(node.line);
+            }else{
+                stack.push(node.right);
+                stack.push(node.left);
+            }
+        }
+    }
+
+    public List<String> toList(){
+        List<String> lines = new ArrayList<>(size);
+        forEach(lines::add);
+        return lines;
+    }
 }
 
 // ============ Concrete Visitors ==============
-class InvoiceVisitor implements ItemVisitor{
-    public void visit(PhysicalProduct item){
-        System.out.println("Invoice: " + item.name + " - Shipping to customer");
+class InvoiceVisitor implements ItemVisitor<InvoiceLines>{
+    public InvoiceLines visit(PhysicalProduct item){
+        return InvoiceLines.of("Invoice: " + item.name + " - Shipping to customer");
+    }
 
+    public InvoiceLines visit(DigitalProduct item){
+        return InvoiceLines.of("Invoice: " + item.name + " - Email with download link");
     }
 
-    public void visit(DigitalProduct item){
-        System.out.println("Invoice: " + item.name + " - Email with download link");
+    public InvoiceLines visit(GiftCard item) {
+        return InvoiceLines.of("Invoice: Gift Card - Code: " + item.code);
     }
 
-    public void visit(GiftCard item) {
-        System.out.println("Invoice: Gift Card - Code: " + item.code);
+    public InvoiceLines combine(InvoiceLines left, InvoiceLines right){
+        return InvoiceLines.concat(left, right);
     }
 }
 
 // ============ Concrete Visitors ==============
-class ShippingCostVisitor implements ItemVisitor {
-    public void visit(PhysicalProduct item) {
-        System.out.println("Shipping cost for " + item.name + ": Rs. " + (item.weight * 10));
+class ShippingCostVisitor implements ItemVisitor<Double> {
+    public Double visit(PhysicalProduct item) {
+        return item.getWeight() * 10;
+    }
+
+    // Digital products and gift cards are delivered by email -- no shipping cost
+    public Double visit(DigitalProduct item) {
+        return 0.0;
+    }
+
+    public Double visit(GiftCard item) {
+        return 0.0;
+    }
+
+    public Double combine(Double left, Double right) {
+        return left + right;
+    }
+}
+
+/*
+Visiting in parallel
+
+ParallelCartTraversal splits a large item list into ranges on a fork-join pool. Every leaf range gets a fresh visitor
+from the supplier, so a visitor with state is never shared between threads, and the partial results are merged
+with the visitor's combine, left before right, so ordered results such as invoice lines keep the item order.
+*/
+class ParallelCartTraversal{
+    static final int DEFAULT_LEAF_SIZE = 4_096;
+
+    private final ForkJoinPool pool;
+    private final int leafSize;
+
+    public ParallelCartTraversal(ForkJoinPool pool, int leafSize){
+        this.pool = pool;
+        this.leafSize = leafSize;
+    }
+
+    public ParallelCartTraversal(){
+        this(ForkJoinPool.commonPool(), DEFAULT_LEAF_SIZE);
+    }
+
+    // Returns null for an empty list
+    public <R> R reduce(List<? extends Item> items, Supplier<? extends ItemVisitor<R>> visitors){
+        List<? extends Item> indexed = items instanceof RandomAccess ? items : new ArrayList<>(items);
+        if(indexed.isEmpty()){
+            return null;
+        }
+        return pool.invoke(new RangeTask<>(indexed, 0, indexed.size(), visitors, leafSize));
+    }
+
+    // Sequential fold of items[from, to) with one visitor
+    static <R> R visitAll(List<? extends Item> items, int from, int to, ItemVisitor<R> visitor){
+        R result = items.get(from).accept(visitor);
+        for(int i = from + 1; i < to; i++){
+            result = visitor.combine(result, items.get(i).accept(visitor));
+        }
+        return result;
+    }
+
+    private static final class RangeTask<R> extends RecursiveTask<R>{
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends Item> items;
+        private final int from;
+        private final int to;
+        private final Supplier<? extends ItemVisitor<R>> visitors;
+        private final int leafSize;
+
+        RangeTask(List<? extends Item> items, int from, int to, Supplier<? extends ItemVisitor<R>> visitors, int leafSize){
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.visitors = visitors;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected R compute(){
+            if(to - from <= leafSize){
+                return visitAll(items, from, to, visitors.get());
+            }
+            int mid = (from + to) >>> 1;
+            RangeTask<R> left = new RangeTask<>(items, from, mid, visitors, leafSize);
+            RangeTask<R> right = new RangeTask<>(items, mid, to, visitors, leafSize);
+            left.fork();
+            R rightResult = right.compute();
+            R leftResult = left.join();
+            return visitors.get().combine(leftResult, rightResult);
+        }
+    }
+}
+
+/*
+Re-rendering checkout
+
+The same cart is evaluated again on every page refresh and promo tweak, although usually nothing or one item has
+changed. MemoizedCart keeps one cart's per-item results in a segment tree of combined results and listens to its
+items: a setter marks that item dirty, and the next result() visits only the dirty items and redoes the log(n)
+combines above each of them. An unchanged cart costs nothing to re-render. CheckoutCache holds the carts of many
+sessions and evicts the least recently used session once they hold too many items in total; an evicted cart stops
+listening, so nothing keeps its items alive. A closed cart no longer hears about changes, so it refuses to answer
+instead of returning stale totals; callers ask the cache for the session's cart again.
+*/
+
+// One cart's result for one visitor, kept up to date incrementally
+class MemoizedCart<R> implements AutoCloseable{
+    private final ItemVisitor<R> visitor;
+    private Item[] items;
+    private ItemChangeListener[] watchers;   // watchers[i] is registered on items[i]
+    private Object[] tree;                   // tree[1] is the whole cart, leaves start at tree[leaves]
+    private int leaves;
+    private long visits;
+    private boolean closed;
+
+    private final Object dirtyLock = new Object();
+    private final BitSet dirty = new BitSet();
+
+    public MemoizedCart(List<? extends Item> items, ItemVisitor<R> visitor){
+        this.visitor = visitor;
+        Item[] initial = items.toArray(new Item[0]);
+        this.watchers = new ItemChangeListener[initial.length];
+        rebuild(initial);
+        for(int i = 0; i < initial.length; i++){
+            watch(i);
+        }
+    }
+
+    private void watch(int index){
+        ItemChangeListener watcher = item -> markDirty(index);
+        watchers[index] = watcher;
+        items[index].addChangeListener(watcher);
+    }
+
+    private void markDirty(int index){
+        synchronized(dirtyLock){
+            dirty.set(index);
+        }
+    }
+
+    private void rebuild(Item[] newItems){
+        items = newItems;
+        leaves = Integer.highestOneBit(Math.max(1, items.length - 1)) << 1;
+        tree = new Object[2 * leaves];
+        for(int i = 0; i < items.length; i++){
+            tree[leaves + i] = items[i].accept(visitor);
+            visits++;
+        }
+        for(int node = leaves - 1; node >= 1; node--){
+            tree[node] = merge(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object merge(Object left, Object right){
+        if(left == null){
+            return right;
+        }
+        return right == null ? left : visitor.combine((R) left, (R) right);
+    }
+
+    private void update(int index){
+        tree[leaves + index] = items[index].accept(visitor);
+        visits++;
+        for(int node = (leaves + index) >>> 1; node >= 1; node >>>= 1){
+            tree[node] = merge(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+
+    // Re-visits only the items changed since the last call; null for an empty cart
+    @SuppressWarnings("unchecked")
+    public synchronized R result(){
+        checkOpen();
+        BitSet changed;
+        synchronized(dirtyLock){
+            if(dirty.isEmpty()){
+                return (R) tree[1];
+            }
+            changed = (BitSet) dirty.clone();
+            dirty.clear();
+        }
+        for(int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)){
+            update(i);
+        }
+        return (R) tree[1];
+    }
+
+    public synchronized void set(int index, Item item){
+        checkOpen();
+        items[index].removeChangeListener(watchers[index]);
+        items[index] = item;
+        watch(index);
+        update(index);
+    }
+
+    public synchronized void add(Item item){
+        checkOpen();
+        Item[] grown = Arrays.copyOf(items, items.length + 1);
+        grown[items.length] = item;
+        watchers = Arrays.copyOf(watchers, grown.length);
+        if(grown.length <= leaves){
+            items = grown;
+            update(grown.length - 1);
+        }else{
+            rebuild(grown);
+        }
+        watch(grown.length - 1);
     }
 
-    public void visit(DigitalProduct item) {
-        System.out.println(item.name + " is digital -- No shipping cost.");
+    public synchronized int size(){
+        return items.length;
     }
 
-    public void visit(GiftCard item) {
-        System.out.println("GiftCard delivery via email -- No shipping cost.");
+    public synchronized long visits(){
+        return visits;
+    }
+
+    public synchronized boolean isClosed(){
+        return closed;
+    }
+
+    private void checkOpen(){
+        if(closed){
+            throw new IllegalStateException("Cart is closed and no longer tracks its items; get it from the cache again");
+        }
+    }
+
+    // Stops listening to the items; result(), set() and add() throw from then on
+    @Override
+    public synchronized void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        for(int i = 0; i < items.length; i++){
+            items[i].removeChangeListener(watchers[i]);
+        }
     }
 }
 
+// Memoized carts of many checkout sessions for one visitor, bounded by the total number of items
+class CheckoutCache<R>{
+    private final Supplier<? extends ItemVisitor<R>> visitors;
+    private final long maxItems;
+    private final LinkedHashMap<String, MemoizedCart<R>> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private long evictions;
+
+    public CheckoutCache(Supplier<? extends ItemVisitor<R>> visitors, long maxItems){
+        this.visitors = visitors;
+        this.maxItems = maxItems;
+    }
+
+    // The session's cart, built from items the first time; later changes reach it through the item setters
+    // or MemoizedCart.set/add. The cart is built outside the lock, so other sessions are not held up.
+    public MemoizedCart<R> cart(String sessionId, List<? extends Item> items){
+        synchronized(this){
+            MemoizedCart<R> cart = sessions.get(sessionId);
+            if(cart != null){
+                return cart;
+            }
+        }
+        MemoizedCart<R> built = new MemoizedCart<>(items, visitors.get());
+        synchronized(this){
+            MemoizedCart<R> raced = sessions.putIfAbsent(sessionId, built);
+            if(raced != null){
+                built.close();
+                return raced;
+            }
+            evict(sessionId);
+            return built;
+        }
+    }
+
+    public synchronized void remove(String sessionId){
+        MemoizedCart<R> cart = sessions.remove(sessionId);
+        if(cart != null){
+            cart.close();
+        }
+    }
+
+    private void evict(String keep){
+        long total = 0;
+        for(MemoizedCart<R> cart : sessions.values()){
+            total += cart.size();
+        }
+        Iterator<Map.Entry<String, MemoizedCart<R>>> it = sessions.entrySet().iterator();
+        while(total > maxItems && it.hasNext()){
+            Map.Entry<String, MemoizedCart<R>> eldest = it.next();
+            if(eldest.getKey().equals(keep)){
+                continue;
+            }
+            total -= eldest.getValue().size();
+            eldest.getValue().close();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int sessionCount(){
+        return sessions.size();
+    }
+
+    public synchronized long evictions(){
+        return evictions;
+    }
+}
+
+/*
+Checkout for large carts
+
+Running every visitor over every item costs one double dispatch per item per operation, and follows a pointer to a
+separate object for each item. For big carts the ColumnarCart keeps the items grouped by kind, with one primitive
+array per field, and CartEvaluator computes the invoice lines, shipping and discounts of a kind in a single loop
+over its columns. The visitors above are still the way to add new operations; the columnar path is the fast one
+for the operations checkout always runs.
+*/
+
+// Items grouped by kind, one array per field (struct of arrays)
+class ColumnarCart{
+    String[] physicalNames = new String[16];
+    double[] weights = new double[16];
+    int physicalCount;
+
+    String[] digitalNames = new String[16];
+    int[] downloadSizesInMB = new int[16];
+    int digitalCount;
+
+    String[] giftCardCodes = new String[16];
+    double[] giftCardAmounts = new double[16];
+    int giftCardCount;
+
+    public static ColumnarCart of(List<Item> items){
+        ColumnarCart cart = new ColumnarCart();
+        CartColumnsLoader loader = new CartColumnsLoader(cart);
+        for(Item item : items){
+            item.accept(loader);
+        }
+        return cart;
+    }
+
+    // Loads a large item list on a fork-join pool, one cart per leaf, appended together in order
+    public static ColumnarCart of(List<Item> items, ParallelCartTraversal traversal){
+        ColumnarCart cart = traversal.reduce(items, () -> new CartColumnsLoader(new ColumnarCart()));
+        return cart != null ? cart : new ColumnarCart();
+    }
+
+    public ColumnarCart appendAll(ColumnarCart other){
+        for(int i = 0; i < other.physicalCount; i++){
+            addPhysical(other.physicalNames[i], other.weights[i]);
+        }
+        for(int i = 0; i < other.digitalCount; i++){
+            addDigital(other.digitalNames[i], other.downloadSizesInMB[i]);
+        }
+        for(int i = 0; i < other.giftCardCount; i++){
+            addGiftCard(other.giftCardCodes[i], other.giftCardAmounts[i]);
+        }
+        return this;
+    }
+
+    public void addPhysical(String name, double weight){
+        if(physicalCount == weights.length){
+            physicalNames = Arrays.copyOf(physicalNames, physicalCount * 2);
+            weights = Arrays.copyOf(weights, physicalCount * 2);
+        }
+        physicalNames[physicalCount] = name;
+        weights[physicalCount++] = weight;
+    }
+
+    public void addDigital(String name, int downloadSizeInMB){
+        if(digitalCount == downloadSizesInMB.length){
+            digitalNames = Arrays.copyOf(digitalNames, digitalCount * 2);
+            downloadSizesInMB = Arrays.copyOf(downloadSizesInMB, digitalCount * 2);
+        }
+        digitalNames[digitalCount] = name;
+        downloadSizesInMB[digitalCount++] = downloadSizeInMB;
+    }
+
+    public void addGiftCard(String code, double amount){
+        if(giftCardCount == giftCardAmounts.length){
+            giftCardCodes = Arrays.copyOf(giftCardCodes, giftCardCount * 2);
+            giftCardAmounts = Arrays.copyOf(giftCardAmounts, giftCardCount * 2);
+        }
+        giftCardCodes[giftCardCount] = code;
+        giftCardAmounts[giftCardCount++] = amount;
+    }
+
+    public int size(){
+        return physicalCount + digitalCount + giftCardCount;
+    }
+}
+
+// Copies each item into the columns of a cart; one dispatch per item, once
+class CartColumnsLoader implements ItemVisitor<ColumnarCart>{
+    private final ColumnarCart cart;
+
+    CartColumnsLoader(ColumnarCart cart){
+        this.cart = cart;
+    }
+
+    public ColumnarCart visit(PhysicalProduct item){
+        cart.addPhysical(item.name, item.getWeight());
+        return cart;
+    }
+
+    public ColumnarCart visit(DigitalProduct item){
+        cart.addDigital(item.name, item.getDownloadSizeInMB());
+        return cart;
+    }
+
+    public ColumnarCart visit(GiftCard item){
+        cart.addGiftCard(item.code, item.getAmount());
+        return cart;
+    }
+
+    // Within one loader every visit returns the same cart; carts of different workers are appended
+    public ColumnarCart combine(ColumnarCart left, ColumnarCart right){
+        return left == right ? left : left.appendAll(right);
+    }
+}
+
+class CartPricing{
+    static final CartPricing DEFAULT = new CartPricing(10.0, 0.01);
+
+    final double shippingPerKg;
+    final double giftCardDiscountRate;
+
+    public CartPricing(double shippingPerKg, double giftCardDiscountRate){
+        this.shippingPerKg = shippingPerKg;
+        this.giftCardDiscountRate = giftCardDiscountRate;
+    }
+}
+
+enum Fulfilment{
+    SHIP_TO_CUSTOMER,
+    EMAIL_DOWNLOAD_LINK,
+    EMAIL_GIFT_CODE
+}
+
+// What checkout shows for a cart. Invoice lines are listed kind by kind: physical, digital, then gift cards.
+class CartEvaluation{
+    private final ColumnarCart cart;
+    final double[] shippingCosts;   // per physical line
+    final double[] discounts;       // per gift card line
+    final double totalWeight;
+    final double shippingTotal;
+    final long totalDownloadMB;
+    final double giftCardTotal;
+    final double discountTotal;
+
+    CartEvaluation(ColumnarCart cart, double[] shippingCosts, double[] discounts, double totalWeight,
+                   double shippingTotal, long totalDownloadMB, double giftCardTotal, double discountTotal){
+        this.cart = cart;
+        this.shippingCosts = shippingCosts;
+        this.discounts = discounts;
+        this.totalWeight = totalWeight;
+        this.shippingTotal = shippingTotal;
+        this.totalDownloadMB = totalDownloadMB;
+        this.giftCardTotal = giftCardTotal;
+        this.discountTotal = discountTotal;
+    }
+
+    public int invoiceLineCount(){
+        return cart.physicalCount + cart.digitalCount + cart.giftCardCount;
+    }
+
+    public Fulfilment fulfilment(int line){
+        if(line < cart.physicalCount){
+            return Fulfilment.SHIP_TO_CUSTOMER;
+        }
+        return line < cart.physicalCount + cart.digitalCount ? Fulfilment.EMAIL_DOWNLOAD_LINK : Fulfilment.EMAIL_GIFT_CODE;
+    }
+
+    // Rendered on demand, so a 50k line cart does not build 50k strings unless they are shown
+    public String invoiceLine(int line){
+        if(line < cart.physicalCount){
+            return "Invoice: " + cart.physicalNames[line] + " - Shipping to customer";
+        }
+        line -= cart.physicalCount;
+        if(line < cart.digitalCount){
+            return "Invoice: " + cart.digitalNames[line] + " - Email with download link";
+        }
+        return "Invoice: Gift Card - Code: " + cart.giftCardCodes[line - cart.digitalCount];
+    }
+}
+
+class CartEvaluator{
+    private final CartPricing pricing;
+
+    public CartEvaluator(CartPricing pricing){
+        this.pricing = pricing;
+    }
+
+    public CartEvaluation evaluate(ColumnarCart cart){
+        // Physical products: weight, shipping per line and shipping total in one pass
+        double[] weights = cart.weights;
+        double[] shippingCosts = new double[cart.physicalCount];
+        double perKg = pricing.shippingPerKg;
+        double totalWeight = 0, shippingTotal = 0;
+        for(int i = 0; i < shippingCosts.length; i++){
+            double weight = weights[i];
+            double cost = weight * perKg;
+            shippingCosts[i] = cost;
+            totalWeight += weight;
+            shippingTotal += cost;
+        }
+
+        // Digital products only add to the download size
+        int[] sizes = cart.downloadSizesInMB;
+        long totalDownloadMB = 0;
+        for(int i = 0; i < cart.digitalCount; i++){
+            totalDownloadMB += sizes[i];
+        }
+
+        // Gift cards: discount per line and totals in one pass
+        double[] amounts = cart.giftCardAmounts;
+        double[] discounts = new double[cart.giftCardCount];
+        double rate = pricing.giftCardDiscountRate;
+        double giftCardTotal = 0, discountTotal = 0;
+        for(int i = 0; i < discounts.length; i++){
+            double amount = amounts[i];
+            double discount = amount * rate;
+            discounts[i] = discount;
+            giftCardTotal += amount;
+            discountTotal += discount;
+        }
+
+        return new CartEvaluation(cart, shippingCosts, discounts, totalWeight, shippingTotal,
+                totalDownloadMB, giftCardTotal, discountTotal);
+    }
+}
 
 
 public class Main {
@@ -143,14 +790,82 @@ public class Main {
         items.add(new DigitalProduct("Ebook", 100));
         items.add(new GiftCard("TUF500", 500));
 
-        ItemVisitor invoiceGenerator = new InvoiceVisitor();
-        ItemVisitor shippingCalculator = new ShippingCostVisitor();
+        InvoiceVisitor invoiceGenerator = new InvoiceVisitor();
+        ShippingCostVisitor shippingCalculator = new ShippingCostVisitor();
 
         for (Item item : items) {
-            item.accept(invoiceGenerator);
-            item.accept(shippingCalculator);
+            item.accept(invoiceGenerator).forEach(System.out::println);
+            System.out.println("Shipping cost: Rs. " + item.accept(shippingCalculator));
             
             System.out.println("");
         }
+
+        // The same cart through the columnar path
+        CartEvaluation small = new CartEvaluator(CartPricing.DEFAULT).evaluate(ColumnarCart.of(items));
+        for (int i = 0; i < small.invoiceLineCount(); i++) {
+            System.out.println(small.invoiceLine(i) + " [" + small.fulfilment(i) + "]");
+        }
+        System.out.println("Shipping: Rs. " + small.shippingTotal + ", gift card discount: Rs. " + small.discountTotal);
+
+        // A B2B cart with 50k lines
+        Random random = new Random(42);
+        List<Item> bulk = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            switch (i % 3) {
+                case 0: bulk.add(new PhysicalProduct("Part-" + i, 0.1 + random.nextInt(500) / 10.0)); break;
+                case 1: bulk.add(new DigitalProduct("License-" + i, 1 + random.nextInt(2_000))); break;
+                default: bulk.add(new GiftCard("GC" + i, 100 * (1 + random.nextInt(10))));
+            }
+        }
+        ParallelCartTraversal traversal = new ParallelCartTraversal();
+        ColumnarCart bulkCart = ColumnarCart.of(bulk, traversal);
+        CartEvaluator evaluator = new CartEvaluator(CartPricing.DEFAULT);
+        CartEvaluation result = null;
+        for (int warmup = 0; warmup < 200; warmup++) {
+            result = evaluator.evaluate(bulkCart);
+        }
+        long start = System.nanoTime();
+        int rounds = 1_000;
+        for (int i = 0; i < rounds; i++) {
+            result = evaluator.evaluate(bulkCart);
+        }
+        System.out.printf("50k line cart: %.1f us per evaluation, shipping Rs. %.2f, downloads %d MB, discounts Rs. %.2f%n",
+                (System.nanoTime() - start) / 1_000.0 / rounds, result.shippingTotal, result.totalDownloadMB, result.discountTotal);
+
+        // Whole-catalog totals through the visitors, sequential and fork-join
+        List<Item> catalog = new ArrayList<>();
+        for (int i = 0; i < 4_000_000; i++) {
+            catalog.add(bulk.get(i % bulk.size()));
+        }
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            double sequential = ParallelCartTraversal.visitAll(catalog, 0, catalog.size(), new ShippingCostVisitor());
+            long t1 = System.nanoTime();
+            double parallel = traversal.reduce(catalog, ShippingCostVisitor::new);
+            long t2 = System.nanoTime();
+            System.out.printf("4M items shipping: sequential %d ms, parallel %d ms (%.2f vs %.2f)%n",
+                    (t1 - t0) / 1_000_000, (t2 - t1) / 1_000_000, sequential, parallel);
+        }
+        InvoiceLines invoice = traversal.reduce(bulk, InvoiceVisitor::new);
+        System.out.println("Invoice lines: " + invoice.size + ", first: " + invoice.toList().get(0));
+
+        // Checkout refreshes: each session's cart recomputes only the items that changed
+        CheckoutCache<Double> shippingCache = new CheckoutCache<>(ShippingCostVisitor::new, 120_000);
+        MemoizedCart<Double> shipping = shippingCache.cart("session-1", bulk);
+        MemoizedCart<InvoiceLines> invoiceLines = new MemoizedCart<>(bulk, new InvoiceVisitor());
+        double before = shipping.result();
+        long refreshStart = System.nanoTime();
+        PhysicalProduct changed = (PhysicalProduct) bulk.get(0);
+        changed.setWeight(changed.getWeight() + 1);
+        double after = shipping.result();
+        long refreshNanos = System.nanoTime() - refreshStart;
+        System.out.printf("Refresh after one change: %d us, shipping %.2f -> %.2f, visits %d, invoice lines %d%n",
+                refreshNanos / 1_000, before, after, shipping.visits(), invoiceLines.result().size);
+        shippingCache.cart("session-2", bulk).result();
+        shippingCache.cart("session-3", bulk).result();   // 150k items in total: the oldest session goes
+        System.out.println("Sessions cached: " + shippingCache.sessionCount() + ", evicted: " + shippingCache.evictions()
+                + ", session-1's old cart closed: " + shipping.isClosed());
+        System.out.printf("session-1 rebuilt: shipping %.2f%n", shippingCache.cart("session-1", bulk).result());
+        invoiceLines.close();
     }
 }